@@ -0,0 +1,144 @@
+package workshop_tnx_isolation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The M2-M4 workloads against MySql, one benchmark per transaction type, each isolation level and table size.
+ * * *
+ * Throughput mode gives ops/s, SampleTime gives the latency distribution (p0.50, p0.99, p0.999 in the JMH report).
+ * The grouped benchmarks run the anomaly's two sides against each other, that's where the isolation level
+ * actually costs something. The thread count is JMH's '-t' (or 'gradle jmh -PjmhThreads=N'), the grouped benchmarks
+ * use '-tg' for the ratio between the two sides.
+ * * *
+ * Deadlocks and lock wait timeouts don't fail the run, they are counted as aborted transactions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class IsolationLevelBenchmark {
+
+    @Param({"READ UNCOMMITTED", "READ COMMITTED", "REPEATABLE READ", "SERIALIZABLE"})
+    public String isolationLevel;
+
+    @Param({"1000", "100000"})
+    public int rowCount;
+
+    private final DbConnector connector = new DbConnector();
+    private final AtomicLong newItems = new AtomicLong();
+    private final AtomicLong aborts = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void createSchema() {
+        Workloads.createSchema(connector, rowCount);
+    }
+
+    @Setup(Level.Iteration)
+    public void reportAborts() {
+        long count = aborts.getAndSet(0);
+        if (count > 0) {
+            System.out.println("aborted transactions in previous iteration: " + count);
+        }
+    }
+
+    interface Tx {
+        void run(Connection conn) throws SQLException;
+    }
+
+    private void transaction(Tx tx) {
+        connector.run(conn -> {
+            try {
+                tx.run(conn);
+            } catch (SQLException e) {
+                if (!RetryPolicy.isRetryable(e)) {
+                    throw new RuntimeException(e);
+                }
+                aborts.incrementAndGet();
+            }
+            return "";
+        });
+    }
+
+    private String randomUser() {
+        return "user" + ThreadLocalRandom.current().nextInt(rowCount);
+    }
+
+    private String randomBuyer() {
+        return "buyer" + ThreadLocalRandom.current().nextInt(Workloads.buyers(rowCount));
+    }
+
+    @Benchmark
+    public void giveaway() {
+        transaction(conn -> Workloads.giveaway(conn, isolationLevel, randomUser(), randomUser()));
+    }
+
+    // M2: the tax report racing a raise that gets rolled back.
+
+    @Benchmark
+    @Group("taxTheRich")
+    @GroupThreads(1)
+    public void taxTheRich() {
+        transaction(conn -> Workloads.taxTheRich(conn, isolationLevel));
+    }
+
+    @Benchmark
+    @Group("taxTheRich")
+    @GroupThreads(3)
+    public void giveMoreMoney() {
+        transaction(conn -> Workloads.giveMoreMoneyAndRollback(conn, randomUser()));
+    }
+
+    // M3: the leaderboards racing users moving in and out of the EU.
+
+    @Benchmark
+    @Group("generateLeaderboards")
+    @GroupThreads(1)
+    public void generateLeaderboards(Blackhole bh) {
+        transaction(conn -> bh.consume(Workloads.generateLeaderboards(conn, isolationLevel)));
+    }
+
+    @Benchmark
+    @Group("generateLeaderboards")
+    @GroupThreads(3)
+    public void relocate() {
+        transaction(conn -> Workloads.relocate(conn, randomUser()));
+    }
+
+    // M4: checkout racing new items landing in the cart.
+
+    @Benchmark
+    @Group("taxPayAndShip")
+    @GroupThreads(2)
+    public void taxPayAndShip(Blackhole bh) {
+        transaction(conn -> bh.consume(Workloads.taxPayAndShip(conn, isolationLevel, randomBuyer())));
+    }
+
+    @Benchmark
+    @Group("taxPayAndShip")
+    @GroupThreads(2)
+    public void addToCart() {
+        transaction(conn -> Workloads.addToCart(conn, "newItem" + newItems.incrementAndGet(), randomBuyer(), 100));
+    }
+}
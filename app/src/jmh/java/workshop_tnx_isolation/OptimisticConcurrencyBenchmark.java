@@ -0,0 +1,98 @@
+package workshop_tnx_isolation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Optimistic (version column compare-and-set) against pessimistic (SELECT ... FOR UPDATE) read-modify-write on
+ * UserInventory.gbCount, see OptimisticUpdater.
+ * * *
+ * Contention is 'hotRows': every update picks one of the first 'hotRows' users. 1 is the whole campaign hammering
+ * Margot, 10000 is updates spread so thin they almost never meet.
+ * Eight threads by default, '-t' (or 'gradle jmh -PjmhThreads=N') changes it.
+ * * readMostly : the same, but 9 out of 10 operations only read the counter, the case optimistic locking is for.
+ * The updater's stats (conflict rate, time spent waiting for row locks) are printed after every iteration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Threads(8)
+@Fork(1)
+public class OptimisticConcurrencyBenchmark {
+
+    @Param({"optimistic", "pessimistic"})
+    public String mode;
+
+    @Param({"1", "10", "10000"})
+    public int hotRows;
+
+    @Param({"10000"})
+    public int rowCount;
+
+    private final DbConnector connector = new DbConnector();
+    private OptimisticUpdater updater;
+
+    @Setup(Level.Trial)
+    public void createSchema() {
+        Workloads.createSchema(connector, rowCount);
+        connector.run(conn -> {
+            try {
+                OptimisticUpdater.addVersionColumn(conn, "UserInventory");
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+            return "";
+        });
+    }
+
+    @Setup(Level.Iteration)
+    public void newUpdater() {
+        updater = new OptimisticUpdater(connector, "UserInventory", "username", "gbCount", 1000);
+    }
+
+    @TearDown(Level.Iteration)
+    public void reportStats() {
+        System.out.println(mode + " hotRows=" + hotRows + ": " + updater.stats());
+    }
+
+    private String randomUser() {
+        return "user" + ThreadLocalRandom.current().nextInt(Math.min(hotRows, rowCount));
+    }
+
+    private long increment() {
+        return mode.equals("optimistic")
+                ? updater.update(randomUser(), gb -> gb + 1)
+                : updater.updateForUpdate(randomUser(), gb -> gb + 1);
+    }
+
+    @Benchmark
+    public long writeOnly() {
+        return increment();
+    }
+
+    @Benchmark
+    public long readMostly() {
+        if (ThreadLocalRandom.current().nextInt(10) == 0) {
+            return increment();
+        }
+        return connector.query("SELECT gbCount FROM UserInventory WHERE username=?", rs -> rs.getLong(1), randomUser()).get(0);
+    }
+}
@@ -0,0 +1,86 @@
+package workshop_tnx_isolation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Increments on one hot counter against the number of rows it's split over, see ShardedCounter.
+ * shards=1 is the plain single row M1 uses: every increment waits for the previous one's row lock.
+ * * *
+ * Sixteen threads by default, '-t' (or 'gradle jmh -PjmhThreads=N') changes it, there is nothing to gain from more
+ * shards than threads.
+ * * readTotal / readCachedTotal : what the sharding costs the readers, a SUM over 'shards' rows against the cache.
+ * The counter's stats are printed after every iteration, 'rebalances' should stay close to zero.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Threads(16)
+@Fork(1)
+public class ShardedCounterBenchmark {
+    private static final String HOT_KEY = "Margot Robbie";
+
+    @Param({"1", "4", "16", "64"})
+    public int shards;
+
+    private final DbConnector connector = new DbConnector();
+    private ShardedCounter counter;
+
+    @Setup(Level.Trial)
+    public void createCounter() {
+        counter = new ShardedCounter(connector, "UserInventory", "username", "gbCount", shards, Long.MAX_VALUE,
+                Duration.ofMillis(100));
+        connector.run(conn -> {
+            try {
+                counter.createTable(conn);
+                counter.create(conn, HOT_KEY, 0);
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+            return "";
+        });
+    }
+
+    @TearDown(Level.Iteration)
+    public void reportStats() {
+        System.out.println("shards=" + shards + ": " + counter.stats());
+    }
+
+    @TearDown(Level.Trial)
+    public void closeCounter() {
+        counter.close();
+    }
+
+    @Benchmark
+    public void increment() {
+        counter.increment(HOT_KEY, 1);
+    }
+
+    @Benchmark
+    public long readTotal() {
+        return counter.total(HOT_KEY);
+    }
+
+    @Benchmark
+    public long readCachedTotal() {
+        return counter.cachedTotal(HOT_KEY);
+    }
+}
@@ -0,0 +1,133 @@
+package workshop_tnx_isolation.engine;
+
+import com.google.common.collect.Range;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Insert throughput while 'readers' SERIALIZABLE transactions keep scanning, with two ways of keeping phantoms out:
+ * * predicate : every reader locks the key range its WHERE clause covers in a {@link PredicateLockManager},
+ * inserts only wait for readers whose range they fall into.
+ * * table     : every reader takes a whole-table read lock, every insert waits for all of them.
+ * The table lock is fair, otherwise inserts just barge in and starve the readers, which looks fast but isn't a
+ * lock anybody would want.
+ * * *
+ * Readers run on their own threads for the whole trial. Each one locks a range of 'rangeWidth' keys out of a million,
+ * "reads pages" for 50us and releases. The reader transactions per second are printed after every iteration, so the
+ * insert numbers can't be bought with starved readers. Needs no database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PredicateLockBenchmark {
+    private static final int KEY_SPACE = 1_000_000;
+
+    @Param({"predicate", "table"})
+    public String lockType;
+
+    @Param({"0", "1", "4", "16"})
+    public int readers;
+
+    @Param({"1000"})
+    public int rangeWidth;
+
+    private final AtomicLong txnIds = new AtomicLong();
+    private final LongAdder readerTransactions = new LongAdder();
+    private final List<Thread> readerThreads = new ArrayList<>();
+    private volatile boolean running;
+    private long iterationStart;
+    private PredicateLockManager<Integer> predicateLocks;
+    private ReentrantReadWriteLock tableLock;
+
+    @Setup(Level.Trial)
+    public void startReaders() {
+        predicateLocks = new PredicateLockManager<>(Duration.ofSeconds(10));
+        tableLock = new ReentrantReadWriteLock(true);
+        running = true;
+        for (int i = 0; i < readers; i++) {
+            Thread t = new Thread(this::readLoop, "serializable-reader-" + i);
+            t.setDaemon(true);
+            t.start();
+            readerThreads.add(t);
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void resetReaderCount() {
+        readerTransactions.reset();
+        iterationStart = System.nanoTime();
+    }
+
+    @TearDown(Level.Iteration)
+    public void reportReaders() {
+        double seconds = (System.nanoTime() - iterationStart) / 1e9;
+        System.out.printf("reader transactions/s: %.0f%n", readerTransactions.sum() / seconds);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopReaders() throws InterruptedException {
+        running = false;
+        for (Thread t : readerThreads) {
+            t.join();
+        }
+        readerThreads.clear();
+    }
+
+    private void readLoop() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (running) {
+            long txn = txnIds.incrementAndGet();
+            if (lockType.equals("predicate")) {
+                int from = random.nextInt(KEY_SPACE - rangeWidth);
+                predicateLocks.lock(txn, Range.closedOpen(from, from + rangeWidth), PredicateLockManager.Mode.SHARED);
+                LockSupport.parkNanos(50_000);
+                predicateLocks.releaseAll(txn);
+            } else {
+                tableLock.readLock().lock();
+                try {
+                    LockSupport.parkNanos(50_000);
+                } finally {
+                    tableLock.readLock().unlock();
+                }
+            }
+            readerTransactions.increment();
+        }
+    }
+
+    @Benchmark
+    public void insert() {
+        long txn = txnIds.incrementAndGet();
+        int key = ThreadLocalRandom.current().nextInt(KEY_SPACE);
+        if (lockType.equals("predicate")) {
+            predicateLocks.insert(txn, key);
+            predicateLocks.releaseAll(txn);
+        } else {
+            tableLock.writeLock().lock();
+            tableLock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package workshop_tnx_isolation.engine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import static workshop_tnx_isolation.engine.Transaction.row;
+import static workshop_tnx_isolation.engine.Transaction.with;
+
+/**
+ * The claim at the end of M3_ReadCommitted, measured: strict two phase locking vs snapshot reads, in process.
+ * * *
+ * * 2pl  : READ COMMITTED transactions on the {@link MvccStore} with every row read share-locked and every row written
+ * exclusive-locked in a {@link RowLockManager} until commit. That's serializable the old way.
+ * * mvcc : REPEATABLE READ transactions, no locks at all, readers walk the version chains.
+ * * *
+ * Two groups, each one reader against three 'relocate' writers moving random users in or out of Europe:
+ * * leaderboards : the M3 transaction, two scans over User building the EU and NON_EU top scorers.
+ * * backup       : one full scan of User, the "nightly backup" M3 talks about.
+ * Throughput gives ops/s per side, SampleTime the latency distribution, look at the writers' p0.99 while a scan runs.
+ * Aborted transactions (deadlock victims under 2PL, first-updater-wins losers under MVCC) are printed per iteration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class TwoPhaseLockingBenchmark {
+
+    @Param({"2pl", "mvcc"})
+    public String concurrencyControl;
+
+    @Param({"10000"})
+    public int users;
+
+    private MvccStore db;
+    private RowLockManager locks;
+    private final LongAdder aborts = new LongAdder();
+
+    @Setup(Level.Trial)
+    public void createSchema() {
+        db = new MvccStore();
+        locks = new RowLockManager(256, Duration.ofSeconds(5));
+        db.createTable("User");
+        db.createTable("Leaderboards");
+        db.inTransaction(IsolationLevel.REPEATABLE_READ, t -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < users; i++) {
+                t.insert("User", "user" + i, row("username", "user" + i, "livesInEurope", random.nextBoolean(),
+                        "points", random.nextInt(200)));
+            }
+            t.insert("Leaderboards", "EU", row("leaderboardName", "EU", "topScorers", 0));
+            t.insert("Leaderboards", "NON_EU", row("leaderboardName", "NON_EU", "topScorers", 0));
+            return null;
+        });
+    }
+
+    @TearDown(Level.Iteration)
+    public void reportAborts() {
+        long count = aborts.sumThenReset();
+        if (count > 0) {
+            System.out.println("aborted transactions in this iteration: " + count);
+        }
+    }
+
+    private boolean twoPhaseLocking() {
+        return concurrencyControl.equals("2pl");
+    }
+
+    private <T> T transaction(Function<Transaction, T> body) {
+        Transaction txn = db.begin(twoPhaseLocking() ? IsolationLevel.READ_COMMITTED : IsolationLevel.REPEATABLE_READ);
+        try {
+            T result = body.apply(txn);
+            txn.commit();
+            return result;
+        } catch (TransactionConflictException | LockConflictException e) {
+            aborts.increment();
+            return null;
+        } finally {
+            txn.rollback();
+            if (twoPhaseLocking()) {
+                locks.releaseAll(txn.id());
+            }
+        }
+    }
+
+    /**
+     * SELECT * FROM User WHERE ..., a full scan since there's no index. Under 2PL every row gets share-locked,
+     * matching or not, and stays locked until commit.
+     */
+    private List<Map<String, Object>> scanUsers(Transaction t, Predicate<Map<String, Object>> where) {
+        if (!twoPhaseLocking()) {
+            return t.select("User", where);
+        }
+        List<Map<String, Object>> ret = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            String key = "user" + i;
+            locks.lock(t.id(), "User/" + key, RowLockManager.Mode.SHARED);
+            Map<String, Object> r = t.get("User", key);
+            if (r != null && where.test(r)) {
+                ret.add(r);
+            }
+        }
+        return ret;
+    }
+
+    private int buildLeaderboards(Transaction t) {
+        List<Map<String, Object>> eu = scanUsers(t, r -> (Boolean) r.get("livesInEurope") && (Integer) r.get("points") >= 100);
+        saveLeaderboard(t, "EU", eu.size());
+        List<Map<String, Object>> world = scanUsers(t, r -> !(Boolean) r.get("livesInEurope") && (Integer) r.get("points") >= 100);
+        saveLeaderboard(t, "NON_EU", world.size());
+        return eu.size() + world.size();
+    }
+
+    private void saveLeaderboard(Transaction t, String name, int topScorers) {
+        if (twoPhaseLocking()) {
+            locks.lock(t.id(), "Leaderboards/" + name, RowLockManager.Mode.EXCLUSIVE);
+        }
+        t.update("Leaderboards", name, r -> with(r, "topScorers", topScorers));
+    }
+
+    private boolean relocate(Transaction t) {
+        String key = "user" + ThreadLocalRandom.current().nextInt(users);
+        if (twoPhaseLocking()) {
+            locks.lock(t.id(), "User/" + key, RowLockManager.Mode.EXCLUSIVE);
+        }
+        return t.update("User", key, r -> with(r, "livesInEurope", !(Boolean) r.get("livesInEurope")));
+    }
+
+    @Benchmark
+    @Group("leaderboards")
+    @GroupThreads(1)
+    public void generateLeaderboards(Blackhole bh) {
+        bh.consume(transaction(this::buildLeaderboards));
+    }
+
+    @Benchmark
+    @Group("leaderboards")
+    @GroupThreads(3)
+    public void relocateDuringLeaderboards(Blackhole bh) {
+        bh.consume(transaction(this::relocate));
+    }
+
+    @Benchmark
+    @Group("backup")
+    @GroupThreads(1)
+    public void fullScan(Blackhole bh) {
+        bh.consume(transaction(t -> scanUsers(t, r -> true).size()));
+    }
+
+    @Benchmark
+    @Group("backup")
+    @GroupThreads(3)
+    public void relocateDuringBackup(Blackhole bh) {
+        bh.consume(transaction(this::relocate));
+    }
+}
@@ -0,0 +1,280 @@
+package workshop_tnx_isolation;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator: a mix of the M1-M4 transactions (see Workloads) for a fixed time, with latency and throughput per
+ * transaction type and isolation level. 'gradle run --args="mode=open rate=500 duration=30"'.
+ * * *
+ * Arguments, all key=value and optional:
+ * * mode      : 'open' (default) or 'closed'
+ * * rate      : transactions per second to aim for, 200 by default. Optional in closed mode, 0 means as fast as possible
+ * * clients   : threads running transactions, and connections, 16 by default
+ * * duration  : seconds, 30 by default
+ * * rows      : rows per table, 10000 by default. 'load=false' keeps the tables from the previous run
+ * * mix       : weights per type, default 'giveaway:5,checkout:3,leaderboards:1,tax:1,report:1'
+ * * levels    : isolation levels to spread the transactions over, default 'READ_COMMITTED,REPEATABLE_READ'
+ * * *
+ * Open: transactions are due at fixed times (1/rate apart) whether or not the previous ones are done, like users who
+ * don't wait for each other. When the clients can't keep up they queue.
+ * Closed: 'clients' threads, each starting its next transaction when the last one is done, like a connection pool
+ * in front of a fixed number of users.
+ * * *
+ * Coordinated omission: a closed loop, or an open loop that measures from when a transaction actually started, stops
+ * sending while the database stalls, so the stall shows up as ONE slow transaction instead of all the ones that
+ * should have been sent meanwhile. Here latency is measured from when a transaction was DUE: queueing behind a
+ * stall counts. 'service' is from when it actually started, the optimistic number most tools print.
+ * Closed mode without a rate has no due times, there latency and service are the same thing.
+ */
+public class App {
+
+    // Each comes with the other half of its scenario: a cart add before the checkout, a relocation before the
+    // leaderboards, a rolled back raise before the tax report. Measured together, as one.
+    // REPORT is the odd one out, a read-only dashboard query that may be served by a replica (-Dtnx.replicas=...).
+    enum Type {GIVEAWAY, CHECKOUT, LEADERBOARDS, TAX, REPORT}
+
+    private static final class Results {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LatencyHistogram service = new LatencyHistogram();
+        // From due to failing. Kept apart so errors don't make 'latency' look better, or a stall that ends in a lock
+        // wait timeout disappear from the report.
+        final LatencyHistogram failed = new LatencyHistogram();
+    }
+
+    private final DbConnector connector;
+    private final int rows;
+    private final Type[] mix;
+    private final String[] levels;
+    private final Map<String, Results> results = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> errorsByState = new ConcurrentHashMap<>();
+    private final AtomicLong nextItem = new AtomicLong();
+
+    App(DbConnector connector, int rows, Map<Type, Integer> weights, String[] levels) {
+        this.connector = connector;
+        this.rows = rows;
+        List<Type> mix = new ArrayList<>();
+        weights.forEach((type, weight) -> {
+            for (int i = 0; i < weight; i++) {
+                mix.add(type);
+            }
+        });
+        if (mix.isEmpty()) {
+            throw new IllegalArgumentException("Empty mix " + weights);
+        }
+        this.mix = mix.toArray(new Type[0]);
+        this.levels = levels;
+    }
+
+    /**
+     * Sends one transaction due at 'dueNanos' every 1/rate seconds for 'duration', to 'clients' threads.
+     */
+    void runOpen(int clients, double rate, Duration duration) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long start = System.nanoTime();
+        long end = start + duration.toNanos();
+        try {
+            for (long due = start; due < end; due += interval) {
+                sleepUntil(due);
+                long dueNanos = due;
+                pool.execute(() -> runOne(dueNanos));
+            }
+        } finally {
+            pool.shutdown();
+            // What's still queued when the time is up is let through, it was due, leaving it out would flatter the tail.
+            if (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                List<Runnable> dropped = pool.shutdownNow();
+                System.err.println("Still running a minute after the end, " + dropped.size()
+                        + " queued transactions dropped, the report undercounts the tail");
+                pool.awaitTermination(1, TimeUnit.MINUTES);
+            }
+        }
+    }
+
+    /**
+     * 'clients' threads back to back. With a rate > 0 each paces itself to rate/clients, and a transaction
+     * that starts late because the previous one ran long is measured from when it was due.
+     */
+    void runClosed(int clients, double rate, Duration duration) throws InterruptedException {
+        long start = System.nanoTime();
+        long end = start + duration.toNanos();
+        long interval = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) * clients / rate) : 0;
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            // Staggered so the clients don't all fire at once.
+            long first = start + interval * c / clients;
+            Thread t = new Thread(() -> {
+                for (long due = first; System.nanoTime() < end; due += interval) {
+                    if (interval > 0) {
+                        sleepUntil(due);
+                        runOne(due);
+                    } else {
+                        runOne(System.nanoTime());
+                    }
+                }
+            }, "client-" + c);
+            t.start();
+            threads.add(t);
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+    }
+
+    private void runOne(long dueNanos) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Type type = mix[random.nextInt(mix.length)];
+        String level = levels[random.nextInt(levels.length)];
+        Results r = results.computeIfAbsent(type + " @ " + level, k -> new Results());
+        long started = System.nanoTime();
+        try {
+            if (type == Type.REPORT) {
+                connector.readOnly(level, Workloads::report);
+            } else {
+                connector.run(conn -> {
+                    try {
+                        execute(conn, type, level, random);
+                    } catch (SQLException e) {
+                        rollbackQuietly(conn);
+                        throw new RuntimeException(e);
+                    }
+                    return "";
+                });
+            }
+        } catch (RuntimeException e) {
+            r.failed.record(System.nanoTime() - dueNanos);
+            String state = e.getCause() instanceof SQLException sql ? sql.getSQLState() + "/" + sql.getErrorCode() : e.toString();
+            errorsByState.computeIfAbsent(state, k -> new LongAdder()).increment();
+            return;
+        }
+        long done = System.nanoTime();
+        r.latency.record(done - dueNanos);
+        r.service.record(done - started);
+    }
+
+    private void execute(Connection conn, Type type, String level, ThreadLocalRandom random) throws SQLException {
+        switch (type) {
+            case GIVEAWAY -> Workloads.giveaway(conn, level, "user" + random.nextInt(rows), "user" + random.nextInt(rows));
+            case CHECKOUT -> {
+                String buyer = "buyer" + random.nextInt(Workloads.buyers(rows));
+                // Carts only ever grow, the new items are what 'checkout' at REPEATABLE READ may phantom read.
+                if (random.nextInt(4) == 0) {
+                    Workloads.addToCart(conn, "appItem" + nextItem.incrementAndGet(), buyer, 1 + random.nextInt(50));
+                }
+                Workloads.taxPayAndShip(conn, level, buyer);
+            }
+            case LEADERBOARDS -> {
+                Workloads.relocate(conn, "user" + random.nextInt(rows));
+                Workloads.generateLeaderboards(conn, level);
+            }
+            case TAX -> {
+                Workloads.giveMoreMoneyAndRollback(conn, "user" + random.nextInt(rows));
+                Workloads.taxTheRich(conn, level);
+            }
+            case REPORT -> throw new IllegalArgumentException("REPORT runs through readOnly, see runOne");
+        }
+    }
+
+    private static void rollbackQuietly(Connection conn) {
+        try (Statement st = conn.createStatement()) {
+            st.execute("ROLLBACK");
+        } catch (SQLException ignored) {
+        }
+    }
+
+    private static void sleepUntil(long nanos) {
+        for (long left = nanos - System.nanoTime(); left > 0; left = nanos - System.nanoTime()) {
+            LockSupport.parkNanos(left);
+        }
+    }
+
+    /**
+     * One line per transaction type and isolation level, sorted. 'failed' is the latency of the ones that errored.
+     */
+    String report(Duration duration) {
+        StringBuilder ret = new StringBuilder();
+        new TreeMap<>(results).forEach((name, r) -> {
+            ret.append(String.format("%-36s %8.1f tx/s  errors=%d%n",
+                            name, r.latency.count() / (double) duration.toSeconds(), r.failed.count()))
+                    .append("    latency ").append(r.latency.summary()).append('\n')
+                    .append("    service ").append(r.service.summary()).append('\n');
+            if (r.failed.count() > 0) {
+                ret.append("    failed  ").append(r.failed.summary()).append('\n');
+            }
+        });
+        if (!errorsByState.isEmpty()) {
+            ret.append("errors by SQLState/code: ").append(new TreeMap<>(errorsByState)).append('\n');
+        }
+        return ret.toString();
+    }
+
+    static Map<Type, Integer> parseMix(String mix) {
+        Map<Type, Integer> ret = new HashMap<>();
+        for (String part : mix.split(",")) {
+            String[] kv = part.trim().split(":");
+            ret.put(Type.valueOf(kv[0].toUpperCase()), kv.length > 1 ? Integer.parseInt(kv[1]) : 1);
+        }
+        return ret;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> opts = new HashMap<>();
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            if (kv.length != 2) {
+                throw new IllegalArgumentException("Expected key=value, got '" + arg + "'");
+            }
+            opts.put(kv[0], kv[1]);
+        }
+        String mode = opts.getOrDefault("mode", "open");
+        int clients = Integer.parseInt(opts.getOrDefault("clients", "16"));
+        double rate = Double.parseDouble(opts.getOrDefault("rate", mode.equals("open") ? "200" : "0"));
+        Duration duration = Duration.ofSeconds(Long.parseLong(opts.getOrDefault("duration", "30")));
+        int rows = Integer.parseInt(opts.getOrDefault("rows", "10000"));
+        String[] levels = opts.getOrDefault("levels", "READ_COMMITTED,REPEATABLE_READ").replace('_', ' ').split(",");
+
+        // Its own pool, one connection per client: waiting for a connection is not what's being measured.
+        ConnectionPool.Config config = DbConnector.defaultConfig().withSize(0, clients);
+        ConnectionPool pool = new ConnectionPool(config);
+        ReplicaRouter replicas = ReplicaRouter.fromSystemProperties(config);
+        DbConnector connector = new DbConnector(pool, "App", replicas);
+        if (!opts.getOrDefault("load", "true").equals("false")) {
+            Workloads.createSchema(connector, rows);
+        }
+        Map<Type, Integer> mix = parseMix(opts.getOrDefault("mix", "giveaway:5,checkout:3,leaderboards:1,tax:1,report:1"));
+        App app = new App(connector, rows, mix, levels);
+
+        System.out.println("Running " + mode + " loop, clients=" + clients + " rate=" + rate + "/s for " + duration);
+        if (mode.equals("open")) {
+            if (rate <= 0) {
+                throw new IllegalArgumentException("Open mode needs a rate");
+            }
+            app.runOpen(clients, rate, duration);
+        } else if (mode.equals("closed")) {
+            app.runClosed(clients, rate, duration);
+        } else {
+            throw new IllegalArgumentException("Unknown mode '" + mode + "', open or closed");
+        }
+        System.out.print(app.report(duration));
+        System.out.println("Pool: " + connector.poolStats());
+        System.out.print(connector.replicaReport());
+        replicas.close();
+        pool.close();
+    }
+}
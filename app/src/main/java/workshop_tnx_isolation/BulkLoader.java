@@ -0,0 +1,221 @@
+package workshop_tnx_isolation;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fills tables with lots of synthetic rows, fast.
+ * * *
+ * Rows [0, rows) are split in 'parallelism' key ranges, each loaded on its own connection.
+ * Within a range rows are sent as JDBC batches of 'batchSize', which the driver rewrites into a single multi row
+ * INSERT (rewriteBatchedStatements), and committed once per batch so no transaction grows huge.
+ * Alternatively 'loadInfile' writes the rows to a temp file and lets MySql slurp it with LOAD DATA LOCAL INFILE,
+ * usually the fastest option there is.
+ */
+public class BulkLoader {
+
+    /**
+     * Produces the column values of row number 'index', in table column order.
+     */
+    public interface RowGenerator {
+        Object[] row(long index);
+    }
+
+    public record Report(String table, long rows, long nanos) {
+        public double rowsPerSecond() {
+            return rows * 1_000_000_000.0 / Math.max(1, nanos);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d rows in %d ms (%.0f rows/s)",
+                    table, rows, TimeUnit.NANOSECONDS.toMillis(nanos), rowsPerSecond());
+        }
+    }
+
+    private final DbConnector connector;
+    private int batchSize = 1000;
+    private int parallelism = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    public BulkLoader() {
+        // Own pool: LOAD DATA LOCAL INFILE has to be switched on explicitly in the driver.
+        this(new DbConnector(new ConnectionPool(DbConnector.defaultConfig()
+                .withUrlParameters("allowLoadLocalInfile=true")
+                .withSize(0, 16))));
+    }
+
+    public BulkLoader(DbConnector connector) {
+        this.connector = connector;
+    }
+
+    public DbConnector connector() {
+        return connector;
+    }
+
+    public BulkLoader batchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    public BulkLoader parallelism(int parallelism) {
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Batched, parallel INSERTs of rows [0, rows) into an existing table.
+     */
+    public Report load(String table, int columns, long rows, RowGenerator generator) {
+        String insert = "INSERT INTO " + table + " VALUES (" + "?, ".repeat(columns - 1) + "?)";
+        long start = System.nanoTime();
+        inParallel(rows, (from, to) -> connector.run(conn -> {
+            try {
+                insertRange(conn, insert, columns, from, to, generator);
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+            return "";
+        }));
+        return new Report(table, rows, System.nanoTime() - start);
+    }
+
+    /**
+     * Same rows as 'load', but written to tab separated files first and streamed in with LOAD DATA LOCAL INFILE.
+     * Needs 'local_infile=ON' on the server.
+     */
+    public Report loadInfile(String table, long rows, RowGenerator generator) {
+        long start = System.nanoTime();
+        inParallel(rows, (from, to) -> {
+            Path file = writeInfile(table, from, to, generator);
+            try {
+                connector.run(conn -> {
+                    try (Statement st = conn.createStatement()) {
+                        st.execute("LOAD DATA LOCAL INFILE '" + file.toAbsolutePath().toString().replace('\\', '/')
+                                + "' INTO TABLE " + table + " CHARACTER SET utf8mb4");
+                    } catch (SQLException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return "";
+                });
+            } finally {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException ignored) {
+                }
+            }
+        });
+        return new Report(table, rows, System.nanoTime() - start);
+    }
+
+    private void insertRange(Connection conn, String insert, int columns, long from, long to, RowGenerator generator) throws SQLException {
+        conn.setAutoCommit(false);
+        try (PreparedStatement ps = conn.prepareStatement(insert)) {
+            int pending = 0;
+            for (long i = from; i < to; i++) {
+                Object[] row = generator.row(i);
+                for (int c = 0; c < columns; c++) {
+                    ps.setObject(c + 1, row[c]);
+                }
+                ps.addBatch();
+                if (++pending == batchSize) {
+                    ps.executeBatch();
+                    conn.commit();
+                    pending = 0;
+                }
+            }
+            if (pending > 0) {
+                ps.executeBatch();
+                conn.commit();
+            }
+        }
+    }
+
+    private Path writeInfile(String table, long from, long to, RowGenerator generator) {
+        try {
+            Path file = Files.createTempFile(table + "-" + from + "-", ".tsv");
+            try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                for (long i = from; i < to; i++) {
+                    Object[] row = generator.row(i);
+                    for (int c = 0; c < row.length; c++) {
+                        if (c > 0) {
+                            out.write('\t');
+                        }
+                        out.write(infileValue(row[c]));
+                    }
+                    out.write('\n');
+                }
+            }
+            return file;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String infileValue(Object value) {
+        if (value == null) {
+            return "\\N";
+        }
+        if (value instanceof Boolean b) {
+            return b ? "1" : "0";
+        }
+        return value.toString().replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    private interface RangeTask {
+        void load(long from, long to);
+    }
+
+    private void inParallel(long rows, RangeTask task) {
+        int workers = (int) Math.max(1, Math.min(parallelism, rows / Math.max(1, batchSize)));
+        ExecutorService exec = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<?>> ranges = new ArrayList<>();
+            long chunk = (rows + workers - 1) / workers;
+            for (long from = 0; from < rows; from += chunk) {
+                long start = from;
+                long end = Math.min(rows, from + chunk);
+                ranges.add(exec.submit(() -> task.load(start, end)));
+            }
+            for (Future<?> range : ranges) {
+                range.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            exec.shutdownNow();
+        }
+    }
+
+    /**
+     * Seeds the scenario tables at scale. Args: rows [batchSize] [parallelism] [infile]
+     */
+    public static void main(String[] args) {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        BulkLoader loader = new BulkLoader()
+                .batchSize(args.length > 1 ? Integer.parseInt(args[1]) : 1000)
+                .parallelism(args.length > 2 ? Integer.parseInt(args[2]) : 4);
+        boolean infile = args.length > 3 && args[3].equals("infile");
+
+        for (Report report : Workloads.createSchema(loader, rows, infile)) {
+            System.out.println(report);
+        }
+    }
+}
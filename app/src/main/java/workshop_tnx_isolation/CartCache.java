@@ -0,0 +1,223 @@
+package workshop_tnx_isolation;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read-through cache of M4's carts: the items in PurchaseCart for one buyer, and what they add up to.
+ * * *
+ * Only committed data gets in. A miss loads the cart with one autocommit SELECT, so never from the middle of a
+ * transaction, and writers invalidate after their COMMIT, not after each statement: while 'taxPayAndShip' has
+ * updated the prices but not committed, readers keep getting the old cart, exactly what the database would give them.
+ * That means writes to PurchaseCart must go through 'inTransaction' / 'inTransactionAsync' below (or call
+ * 'invalidate' once committed), and a transaction must not read its own cart from here, it would miss its own changes.
+ * * *
+ * A load racing a commit: every buyer hashes to one of STRIPES generation counters, bumped by each invalidation.
+ * A load remembers the generation it started at and its result is only cached if nothing was invalidated since.
+ * Worst case a reader gets the old cart in the instant between the writer's COMMIT and its invalidation, like a
+ * reader whose SELECT ran a moment earlier would.
+ * * *
+ * Bounded to 'capacity' carts. Eviction is LRU, but a new cart only pushes out the least recently used one if it is
+ * asked for more often (TinyLFU admission): a burst of one-off lookups can't flush the carts everybody keeps reloading.
+ * The frequencies come from a small count-min sketch that halves itself every so often, so old popularity fades.
+ */
+public class CartCache {
+    private static final int STRIPES = 64;
+
+    public record Item(String item, int price, boolean taxApplied) {
+    }
+
+    public record Cart(String buyer, List<Item> items, int total) {
+    }
+
+    /**
+     * 'discardedLoads' are loads that raced an invalidation and weren't cached, 'rejected' carts that lost admission.
+     * 'servedAge' is how long cached carts had been sitting there when handed out.
+     */
+    public record Stats(long hits, long misses, long evictions, long rejected, long invalidations, long discardedLoads,
+                        String servedAge) {
+        public double hitRate() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits=%d misses=%d hitRate=%.2f evictions=%d rejected=%d invalidations=%d "
+                            + "discardedLoads=%d servedAge[%s]", hits, misses, hitRate(), evictions, rejected,
+                    invalidations, discardedLoads, servedAge);
+        }
+    }
+
+    private record Cached(Cart cart, long loadedAtNanos) {
+    }
+
+    private final DbConnector connector;
+    private final int capacity;
+    // Access ordered, the eldest entry is the least recently used. Guarded by 'this', like 'generations' and 'sketch'.
+    private final LinkedHashMap<String, Cached> carts = new LinkedHashMap<>(16, 0.75f, true);
+    private final long[] generations = new long[STRIPES];
+    private final FrequencySketch sketch;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder discardedLoads = new LongAdder();
+    private final LatencyHistogram servedAge = new LatencyHistogram();
+
+    public CartCache(DbConnector connector, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1, got " + capacity);
+        }
+        this.connector = connector;
+        this.capacity = capacity;
+        this.sketch = new FrequencySketch(capacity);
+    }
+
+    /**
+     * The buyer's committed cart, from the cache or loaded.
+     */
+    public Cart get(String buyer) {
+        long generation;
+        synchronized (this) {
+            sketch.increment(buyer);
+            Cached cached = carts.get(buyer);
+            if (cached != null) {
+                hits.increment();
+                servedAge.record(System.nanoTime() - cached.loadedAtNanos());
+                return cached.cart();
+            }
+            generation = generations[stripe(buyer)];
+        }
+        misses.increment();
+        Cart cart = load(buyer);
+        synchronized (this) {
+            if (generations[stripe(buyer)] != generation) {
+                discardedLoads.increment();
+            } else {
+                admit(buyer, new Cached(cart, System.nanoTime()));
+            }
+        }
+        return cart;
+    }
+
+    /**
+     * connector.inTransaction on the buyer's cart, invalidated once the transaction is over.
+     */
+    public <T> T inTransaction(String buyer, String isolationLevel, DbConnector.TransactionBody<T> body) {
+        try {
+            return connector.inTransaction(isolationLevel, body);
+        } finally {
+            // Also when it failed: a failure after COMMIT was sent may still have committed.
+            invalidate(buyer);
+        }
+    }
+
+    public <T> CompletableFuture<T> inTransactionAsync(String buyer, String isolationLevel,
+                                                       DbConnector.TransactionBody<T> body) {
+        return connector.inTransactionAsync(isolationLevel, body).whenComplete((ret, e) -> invalidate(buyer));
+    }
+
+    /**
+     * Forgets the buyer's cart, and any load of it already running. Call it after committing a change to it.
+     */
+    public synchronized void invalidate(String buyer) {
+        invalidations.increment();
+        generations[stripe(buyer)]++;
+        carts.remove(buyer);
+    }
+
+    public Stats stats() {
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), rejected.sum(), invalidations.sum(),
+                discardedLoads.sum(), servedAge.summary());
+    }
+
+    private Cart load(String buyer) {
+        List<Item> items = connector.query("SELECT item, price, taxApplied FROM PurchaseCart WHERE buyer=?",
+                rs -> new Item(rs.getString(1), rs.getInt(2), rs.getBoolean(3)), buyer);
+        int total = 0;
+        for (Item item : items) {
+            total += item.price();
+        }
+        return new Cart(buyer, List.copyOf(items), total);
+    }
+
+    private void admit(String buyer, Cached cached) {
+        if (carts.size() < capacity || carts.containsKey(buyer)) {
+            carts.put(buyer, cached);
+            return;
+        }
+        Iterator<Map.Entry<String, Cached>> eldest = carts.entrySet().iterator();
+        String victim = eldest.next().getKey();
+        if (sketch.frequency(buyer) <= sketch.frequency(victim)) {
+            rejected.increment();
+            return;
+        }
+        eldest.remove();
+        evictions.increment();
+        carts.put(buyer, cached);
+    }
+
+    private static int stripe(String buyer) {
+        return (buyer.hashCode() & 0x7fffffff) % STRIPES;
+    }
+
+    /**
+     * Count-min sketch: DEPTH rows of 4 bit counters (kept in bytes, capped at 15), a key's frequency is the
+     * smallest of its DEPTH counters. After 10 * width increments every counter is halved.
+     */
+    private static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+        private final byte[][] counters;
+        private final int mask;
+        private final int resetAfter;
+        private int increments;
+
+        FrequencySketch(int capacity) {
+            int width = Integer.highestOneBit(Math.max(16, capacity) * 2 - 1);
+            counters = new byte[DEPTH][width];
+            mask = width - 1;
+            resetAfter = 10 * width;
+        }
+
+        void increment(String key) {
+            int hash = key.hashCode();
+            for (int row = 0; row < DEPTH; row++) {
+                int i = index(hash, row);
+                if (counters[row][i] < 15) {
+                    counters[row][i]++;
+                }
+            }
+            if (++increments == resetAfter) {
+                increments = 0;
+                for (byte[] row : counters) {
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] >>= 1;
+                    }
+                }
+            }
+        }
+
+        int frequency(String key) {
+            int hash = key.hashCode();
+            int ret = 15;
+            for (int row = 0; row < DEPTH; row++) {
+                ret = Math.min(ret, counters[row][index(hash, row)]);
+            }
+            return ret;
+        }
+
+        private int index(int hash, int row) {
+            int h = hash * SEEDS[row];
+            return (h ^ (h >>> 16)) & mask;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package workshop_tnx_isolation;
+
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A small bounded pool of JDBC connections.
+ * * *
+ * Opening a connection to MySql means a TCP handshake, authentication and session setup. For the short transactions
+ * in this workshop that is way more expensive than the transaction itself, so connections are kept open and reused.
+ * * *
+ * A connection handed back to the pool gets its session state (open transaction, autocommit, isolation level) reset,
+ * so whatever a transaction did to its session does not leak into the next borrower.
+ * A connection whose operation failed is assumed to be in an unknown state (half-finished transaction, pending
+ * 'SET TRANSACTION ISOLATION LEVEL') and is closed instead of being reused.
+ */
+public class ConnectionPool implements AutoCloseable {
+
+    public record Config(String url, String username, String password,
+                         int minSize, int maxSize,
+                         Duration idleTimeout, Duration borrowTimeout, Duration validationWindow) {
+
+        public Config {
+            if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+                throw new IllegalArgumentException("Invalid pool size min=" + minSize + " max=" + maxSize);
+            }
+        }
+
+        public static Config of(String url, String username, String password) {
+            return new Config(url, username, password, 2, 16,
+                    Duration.ofMinutes(5), Duration.ofSeconds(30), Duration.ofMillis(500));
+        }
+
+        public Config withSize(int minSize, int maxSize) {
+            return new Config(url, username, password, minSize, maxSize, idleTimeout, borrowTimeout, validationWindow);
+        }
+
+        /**
+         * Same database, extra driver settings, e.g. withUrlParameters("allowLoadLocalInfile=true")
+         */
+        public Config withUrlParameters(String parameters) {
+            String extended = url + (url.contains("?") ? "&" : "?") + parameters;
+            return new Config(extended, username, password, minSize, maxSize, idleTimeout, borrowTimeout, validationWindow);
+        }
+    }
+
+    /**
+     * Point-in-time view of the pool, borrow wait times are in nanoseconds.
+     */
+    public record Stats(int active, int idle, long borrows, long timeouts, long created, long evicted,
+                        long avgBorrowWaitNanos, long maxBorrowWaitNanos) {
+        @Override
+        public String toString() {
+            return "active=" + active + " idle=" + idle + " borrows=" + borrows + " timeouts=" + timeouts
+                    + " created=" + created + " evicted=" + evicted
+                    + " avgWait=" + TimeUnit.NANOSECONDS.toMicros(avgBorrowWaitNanos) + "us"
+                    + " maxWait=" + TimeUnit.NANOSECONDS.toMicros(maxBorrowWaitNanos) + "us";
+        }
+    }
+
+    private record Idle(Connection connection, long idleSinceNanos) {
+    }
+
+    // getSession, getServerSession, inTransactionOnServer. Null without Connector/J 8.
+    private static final Method[] IN_TRANSACTION = inTransactionMethods();
+
+    private final Config config;
+    private final LinkedBlockingDeque<Idle> idle = new LinkedBlockingDeque<>();
+    private final Semaphore permits;
+    private final AtomicInteger active = new AtomicInteger();
+    private final ScheduledExecutorService housekeeper;
+    private volatile boolean closed;
+
+    private final LongAdder borrows = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder borrowWaitNanos = new LongAdder();
+    private final LongAccumulator maxBorrowWaitNanos = new LongAccumulator(Math::max, 0);
+
+    public ConnectionPool(Config config) {
+        this.config = config;
+        this.permits = new Semaphore(config.maxSize(), true);
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "connection-pool-housekeeper");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1, config.idleTimeout().toMillis() / 2);
+        housekeeper.scheduleWithFixedDelay(this::housekeep, 0, period, TimeUnit.MILLISECONDS);
+    }
+
+    public Config config() {
+        return config;
+    }
+
+    /**
+     * Waits up to 'borrowTimeout' for a free slot. Prefers the most recently returned connection (LIFO),
+     * those are the least likely to have been dropped by the server.
+     */
+    public Connection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(config.borrowTimeout().toNanos(), TimeUnit.NANOSECONDS)) {
+                timeouts.increment();
+                throw new SQLException("Timed out after " + config.borrowTimeout() + " waiting for a connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        }
+        long waited = System.nanoTime() - start;
+        borrowWaitNanos.add(waited);
+        maxBorrowWaitNanos.accumulate(waited);
+        borrows.increment();
+
+        try {
+            Connection connection = takeIdle();
+            active.incrementAndGet();
+            return connection;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Hands a connection back. 'reusable' should be false if the operation that used it failed.
+     */
+    public void release(Connection connection, boolean reusable) {
+        active.decrementAndGet();
+        try {
+            if (reusable && !closed && resetSession(connection)) {
+                idle.offerFirst(new Idle(connection, System.nanoTime()));
+            } else {
+                closeQuietly(connection);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    public Stats stats() {
+        long count = borrows.sum();
+        return new Stats(active.get(), idle.size(), count, timeouts.sum(), created.sum(), evicted.sum(),
+                count == 0 ? 0 : borrowWaitNanos.sum() / count, maxBorrowWaitNanos.get());
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        housekeeper.shutdownNow();
+        Idle entry;
+        while ((entry = idle.pollFirst()) != null) {
+            closeQuietly(entry.connection());
+        }
+    }
+
+    private Connection takeIdle() throws SQLException {
+        Idle entry;
+        while ((entry = idle.pollFirst()) != null) {
+            // Connections that were used a moment ago are trusted, anything older gets a ping.
+            long idleFor = System.nanoTime() - entry.idleSinceNanos();
+            if (idleFor < config.validationWindow().toNanos() || isValid(entry.connection())) {
+                return entry.connection();
+            }
+            evicted.increment();
+            closeQuietly(entry.connection());
+        }
+        return open();
+    }
+
+    /**
+     * A ping that fails with an exception means invalid too, the caller closes the connection either way.
+     */
+    private static boolean isValid(Connection connection) {
+        try {
+            return connection.isValid(5);
+        } catch (SQLException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    private Connection open() throws SQLException {
+        Connection connection = DriverManager.getConnection(config.url(), config.username(), config.password());
+        created.increment();
+        return connection;
+    }
+
+    private boolean resetSession(Connection connection) {
+        try {
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            } else if (inTransactionOnServer(connection)) {
+                // Scenarios open transactions with plain 'START TRANSACTION' statements and may have swallowed an
+                // error half way through. JDBC doesn't know about those, the server's status flag does.
+                try (Statement st = connection.createStatement()) {
+                    st.execute("ROLLBACK");
+                }
+            }
+            if (connection.getTransactionIsolation() != Connection.TRANSACTION_REPEATABLE_READ) {
+                connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            }
+            if (connection.isReadOnly()) {
+                connection.setReadOnly(false);
+            }
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Every OK packet carries the server's "in transaction" flag and Connector/J keeps the last one, so asking costs
+     * no round trip. Through reflection, so the pool stays plain JDBC. If it can't be asked: assume yes.
+     */
+    private static boolean inTransactionOnServer(Connection connection) {
+        if (IN_TRANSACTION == null) {
+            return true;
+        }
+        try {
+            Object session = IN_TRANSACTION[0].invoke(connection.unwrap(IN_TRANSACTION[0].getDeclaringClass()));
+            Object serverSession = IN_TRANSACTION[1].invoke(session);
+            return (Boolean) IN_TRANSACTION[2].invoke(serverSession);
+        } catch (ReflectiveOperationException | SQLException | RuntimeException e) {
+            return true;
+        }
+    }
+
+    private static Method[] inTransactionMethods() {
+        try {
+            return new Method[]{
+                    Class.forName("com.mysql.cj.MysqlConnection").getMethod("getSession"),
+                    Class.forName("com.mysql.cj.Session").getMethod("getServerSession"),
+                    Class.forName("com.mysql.cj.protocol.ServerSession").getMethod("inTransactionOnServer")};
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Evicts connections idle for longer than 'idleTimeout' and tops the pool back up to 'minSize'.
+     */
+    private void housekeep() {
+        long cutoff = System.nanoTime() - config.idleTimeout().toNanos();
+        Iterator<Idle> it = idle.descendingIterator();
+        while (it.hasNext() && idle.size() + active.get() > config.minSize()) {
+            Idle entry = it.next();
+            if (entry.idleSinceNanos() < cutoff && idle.removeFirstOccurrence(entry)) {
+                evicted.increment();
+                closeQuietly(entry.connection());
+            }
+        }
+        try {
+            while (!closed && idle.size() + active.get() < config.minSize()) {
+                idle.offerLast(new Idle(open(), System.nanoTime()));
+            }
+        } catch (SQLException e) {
+            // Database not reachable right now, borrowers will get the error when they actually need a connection.
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        StatementCache.forget(connection);
+        try {
+            connection.close();
+        } catch (SQLException ignored) {
+        }
+    }
+}
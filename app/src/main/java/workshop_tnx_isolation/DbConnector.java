@@ -1,21 +1,299 @@
 package workshop_tnx_isolation;
 
+import workshop_tnx_isolation.engine.IsolationLevel;
+
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Function;
 
 public class DbConnector {
-    private final String url = "jdbc:mysql://localhost:3306/my_playground?useSSL=false";
-    private final String username = "usr_dsu";
-    private final String password = "password";
+    public interface RowMapper<T> {
+        T map(ResultSet rs) throws SQLException;
+    }
+
+    public interface TransactionBody<T> {
+        T apply(Connection conn) throws SQLException;
+    }
 
+    // rewriteBatchedStatements turns JDBC batches into multi row INSERTs, one round trip per batch instead of per row.
+    private static final String url = "jdbc:mysql://localhost:3306/my_playground?useSSL=false&useLocalSessionState=true"
+            + "&rewriteBatchedStatements=true";
+    private static final String username = "usr_dsu";
+    private static final String password = "password";
+
+    // Shared by every scenario, connections are expensive to open and cheap to keep around.
+    private static final ConnectionPool defaultPool = new ConnectionPool(defaultConfig());
+    // Where readOnly goes with the default pool, configured with -Dtnx.replicas etc., the primary if not.
+    private static final ReplicaRouter defaultReplicas = ReplicaRouter.fromSystemProperties(defaultConfig());
+    // Threads for runAsync, sized to the pool. Only started by the first async call.
+    private static volatile JdbcExecutor defaultExecutor;
+
+    private final ConnectionPool pool;
+    private final ReplicaRouter replicas;
+    private final RetryPolicy retryPolicy = RetryPolicy.defaults();
+    // Tags everything Instrumentation records through this connector, the class that created it by default.
+    private final String scenario;
+    private volatile JdbcExecutor executor;
+
+    public DbConnector() {
+        this(defaultPool, StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE).getCallerClass().getSimpleName());
+    }
+
+    public DbConnector(ConnectionPool pool) {
+        this(pool, StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE).getCallerClass().getSimpleName());
+    }
+
+    public DbConnector(ConnectionPool pool, String scenario) {
+        this(pool, scenario, pool == defaultPool ? defaultReplicas : ReplicaRouter.none());
+    }
+
+    public DbConnector(ConnectionPool pool, String scenario, ReplicaRouter replicas) {
+        this.pool = pool;
+        this.scenario = scenario;
+        this.replicas = replicas;
+    }
 
     public void run(Function<Connection, String> operation) {
-        try (Connection connection = DriverManager.getConnection(url, username, password)) {
-            operation.apply(connection);
+        Connection connection;
+        try {
+            connection = pool.borrow();
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
+        run(pool, connection, operation);
+    }
+
+    private void run(ConnectionPool from, Connection connection, Function<Connection, String> operation) {
+        boolean reusable = false;
+        try {
+            operation.apply(Instrumentation.wrap(connection, scenario));
+            reusable = true;
+        } finally {
+            from.release(connection, reusable);
+        }
+    }
+
+    /**
+     * Runs 'body' as a REPEATABLE READ, READ ONLY transaction, on a replica if one is fresh enough, see ReplicaRouter.
+     */
+    public <T> T readOnly(TransactionBody<T> body) {
+        return readOnly("REPEATABLE READ", body);
+    }
+
+    /**
+     * START TRANSACTION READ ONLY: InnoDB doesn't give the transaction an id or a rollback segment, and any write in
+     * 'body' fails (1792). Only for reads that can live with data up to the router's staleness bound old, like
+     * periodic reports: a replica may not have this connector's own last writes yet. Anything that has to show what
+     * was just written (the scenarios' printTables) belongs on the primary, 'run'.
+     * If no replica qualifies, or borrowing from it fails, the primary.
+     */
+    public <T> T readOnly(String isolationLevel, TransactionBody<T> body) {
+        ConnectionPool from = replicas.pick();
+        Connection connection = null;
+        if (from != null) {
+            try {
+                connection = from.borrow();
+            } catch (SQLException e) {
+                replicas.unreachable(from);
+            }
+        }
+        if (connection == null) {
+            from = pool;
+            try {
+                connection = pool.borrow();
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        List<T> result = new ArrayList<>(1);
+        run(from, connection, conn -> {
+            try (Statement st = conn.createStatement()) {
+                st.execute("SET TRANSACTION ISOLATION LEVEL " + isolationLevel);
+                st.execute("START TRANSACTION READ ONLY");
+                result.add(body.apply(conn));
+                st.execute("COMMIT");
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+            return "";
+        });
+        return result.get(0);
+    }
+
+    /**
+     * Runs 'body' as one transaction at 'isolationLevel' and commits it.
+     * If MySql aborts it (deadlock, lock wait timeout) the whole body runs again, with backoff, see RetryPolicy.
+     * So 'body' must not have side effects outside the database, it may run more than once.
+     */
+    public <T> T inTransaction(String isolationLevel, TransactionBody<T> body) {
+        return inTransaction(isolationLevel, retryPolicy, body);
+    }
+
+    public <T> T inTransaction(String isolationLevel, RetryPolicy policy, TransactionBody<T> body) {
+        int jdbcLevel = IsolationLevel.fromSql(isolationLevel).jdbcLevel();
+        List<T> result = new ArrayList<>(1);
+        run(conn -> {
+            try {
+                conn.setTransactionIsolation(jdbcLevel);
+                conn.setAutoCommit(false);
+                for (int attempt = 1; ; attempt++) {
+                    try {
+                        T ret = body.apply(conn);
+                        conn.commit();
+                        policy.committed(isolationLevel);
+                        result.add(ret);
+                        return "";
+                    } catch (SQLException e) {
+                        conn.rollback();
+                        if (!RetryPolicy.isRetryable(e) || !policy.shouldRetry(isolationLevel, attempt)) {
+                            throw e;
+                        }
+                    }
+                    policy.backoff(attempt);
+                }
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        });
+        return result.get(0);
+    }
+
+    /**
+     * Runs 'operation' on a JDBC thread, see JdbcExecutor. The caller gets a future right away and never blocks,
+     * not even when the executor is full: then the future fails with RejectedExecutionException.
+     * Chain dependent transactions with thenCompose, fan out with CompletableFuture.allOf.
+     */
+    public <T> CompletableFuture<T> runAsync(TransactionBody<T> operation) {
+        return executor().submit(() -> {
+            List<T> result = new ArrayList<>(1);
+            run(conn -> {
+                try {
+                    result.add(operation.apply(conn));
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+                return "";
+            });
+            return result.get(0);
+        });
+    }
+
+    /**
+     * inTransaction on a JDBC thread, retries included.
+     */
+    public <T> CompletableFuture<T> inTransactionAsync(String isolationLevel, TransactionBody<T> body) {
+        return executor().submit(() -> inTransaction(isolationLevel, body));
+    }
+
+    public JdbcExecutor.Stats executorStats() {
+        return executor().stats();
+    }
+
+    private JdbcExecutor executor() {
+        if (pool == defaultPool) {
+            if (defaultExecutor == null) {
+                synchronized (DbConnector.class) {
+                    if (defaultExecutor == null) {
+                        defaultExecutor = JdbcExecutor.forPool(defaultPool.config());
+                    }
+                }
+            }
+            return defaultExecutor;
+        }
+        if (executor == null) {
+            synchronized (this) {
+                if (executor == null) {
+                    executor = JdbcExecutor.forPool(pool.config());
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * A prepared statement for 'sql' from the connection's statement cache, parameters already bound.
+     * Don't close it, the cache owns it.
+     */
+    public static PreparedStatement prepare(Connection conn, String sql, Object... params) throws SQLException {
+        // Cached against the real connection, a wrapped one is a new object on every borrow.
+        PreparedStatement ps = StatementCache.prepare(Instrumentation.unwrap(conn), sql);
+        for (int i = 0; i < params.length; i++) {
+            ps.setObject(i + 1, params[i]);
+        }
+        return Instrumentation.wrap(conn, ps, sql);
+    }
+
+    /**
+     * Runs a single parameterized INSERT/UPDATE/DELETE in autocommit mode. Returns the affected row count.
+     */
+    public int update(String sql, Object... params) {
+        int[] count = {0};
+        run(conn -> {
+            try {
+                count[0] = prepare(conn, sql, params).executeUpdate();
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+            return "";
+        });
+        return count[0];
+    }
+
+    /**
+     * Runs a single parameterized SELECT in autocommit mode, mapping every row with 'mapper'.
+     */
+    public <T> List<T> query(String sql, RowMapper<T> mapper, Object... params) {
+        List<T> ret = new ArrayList<>();
+        run(conn -> {
+            try (ResultSet rs = prepare(conn, sql, params).executeQuery()) {
+                while (rs.next()) {
+                    ret.add(mapper.map(rs));
+                }
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+            return "";
+        });
+        return ret;
+    }
+
+    /**
+     * Where the workshop database lives. Start from this when a tool needs its own pool with different settings.
+     */
+    public static ConnectionPool.Config defaultConfig() {
+        return ConnectionPool.Config.of(url, username, password);
+    }
+
+    public String scenario() {
+        return scenario;
+    }
+
+    public ConnectionPool.Config poolConfig() {
+        return pool.config();
+    }
+
+    public ConnectionPool.Stats poolStats() {
+        return pool.stats();
+    }
+
+    public String replicaReport() {
+        return replicas.report();
+    }
+
+    public RetryPolicy retryPolicy() {
+        return retryPolicy;
+    }
+
+    public StatementCache.Stats statementCacheStats() {
+        return StatementCache.stats();
     }
 }
@@ -0,0 +1,188 @@
+package workshop_tnx_isolation;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Group commit for counter increments like the giveaway campaign in M1.
+ * * *
+ * Any number of threads call 'increment(user, delta)'. Requests pile up in a lock-free queue and a single flusher
+ * thread periodically drains it, adds up the deltas per key and writes them all in ONE transaction.
+ * A thousand "+10 for Margot" requests become one UPDATE and one commit (one log flush) instead of a thousand.
+ * * *
+ * Atomicity is kept per flush, same as 'runGiveawayCampaignAtomically': either every request of a flush is applied
+ * or none is. If one key breaks the transaction (int overflow, missing row) the whole flush is rolled back and
+ * every request in it fails.
+ * The returned future completes only after the commit, so a caller never sees "done" for something not durable.
+ */
+public class IncrementCoalescer implements AutoCloseable {
+
+    private record Request(String key, long delta, CompletableFuture<Void> done) {
+    }
+
+    public record Stats(long requests, long flushes, long rowsWritten, long failedFlushes) {
+        @Override
+        public String toString() {
+            return "requests=" + requests + " flushes=" + flushes + " rowsWritten=" + rowsWritten
+                    + " failedFlushes=" + failedFlushes;
+        }
+    }
+
+    private final DbConnector connector;
+    private final String update;
+    private final long flushIntervalNanos;
+    private final int maxPending;
+
+    private final ConcurrentLinkedQueue<Request> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final Thread flusher;
+    private volatile boolean closed;
+    // Set once the flusher wrote its last batch, whatever is queued from then on fails.
+    private volatile boolean drained;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder rowsWritten = new LongAdder();
+    private final LongAdder failedFlushes = new LongAdder();
+
+    /**
+     * Flushes every 'flushIntervalMillis', or as soon as 'maxPending' requests are waiting, whichever comes first.
+     */
+    public IncrementCoalescer(DbConnector connector, String table, String keyColumn, String counterColumn,
+                              long flushIntervalMillis, int maxPending) {
+        this.connector = connector;
+        this.update = "UPDATE " + table + " SET " + counterColumn + " = " + counterColumn + " + ? WHERE " + keyColumn + "=?";
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        this.maxPending = maxPending;
+        this.flusher = new Thread(this::flushLoop, "increment-coalescer-" + table);
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    public CompletableFuture<Void> increment(String key, long delta) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        if (closed) {
+            done.completeExceptionally(new IllegalStateException("Coalescer is closed"));
+            return done;
+        }
+        requests.increment();
+        pending.add(new Request(key, delta, done));
+        if (pendingCount.incrementAndGet() >= maxPending) {
+            LockSupport.unpark(flusher);
+        }
+        // Passed the 'closed' check, but the last flush may have gone meanwhile.
+        if (drained) {
+            failPending();
+        }
+        return done;
+    }
+
+    public Stats stats() {
+        return new Stats(requests.sum(), flushes.sum(), rowsWritten.sum(), failedFlushes.sum());
+    }
+
+    /**
+     * Stops accepting requests and flushes whatever is still queued, however many flushes that takes.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void flushLoop() {
+        while (!closed) {
+            if (pendingCount.get() < maxPending) {
+                LockSupport.parkNanos(this, flushIntervalNanos);
+            }
+            flush();
+        }
+        while (!pending.isEmpty()) {
+            flush();
+        }
+        drained = true;
+        failPending();
+    }
+
+    private void failPending() {
+        Request r;
+        while ((r = pending.poll()) != null) {
+            pendingCount.decrementAndGet();
+            r.done().completeExceptionally(new IllegalStateException("Coalescer is closed"));
+        }
+    }
+
+    private void flush() {
+        List<Request> batch = new ArrayList<>();
+        Request r;
+        while (batch.size() < maxPending && (r = pending.poll()) != null) {
+            batch.add(r);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        pendingCount.addAndGet(-batch.size());
+
+        // Sorted keys: concurrent transactions touching the same rows lock them in the same order, no deadlocks.
+        Map<String, Long> deltas = new TreeMap<>();
+        for (Request request : batch) {
+            deltas.merge(request.key(), request.delta(), Long::sum);
+        }
+
+        try {
+            connector.run(conn -> {
+                try {
+                    write(conn, deltas);
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+                return "";
+            });
+            flushes.increment();
+            rowsWritten.add(deltas.size());
+            batch.forEach(request -> request.done().complete(null));
+        } catch (RuntimeException e) {
+            failedFlushes.increment();
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            batch.forEach(request -> request.done().completeExceptionally(cause));
+        }
+    }
+
+    private void write(Connection conn, Map<String, Long> deltas) throws SQLException {
+        conn.setAutoCommit(false);
+        try {
+            PreparedStatement ps = DbConnector.prepare(conn, update);
+            for (Map.Entry<String, Long> delta : deltas.entrySet()) {
+                ps.setLong(1, delta.getValue());
+                ps.setString(2, delta.getKey());
+                ps.addBatch();
+            }
+            int[] counts = ps.executeBatch();
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] == 0) {
+                    throw new SQLException("No row to increment for key '" + new ArrayList<>(deltas.keySet()).get(i) + "'");
+                }
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        }
+    }
+}
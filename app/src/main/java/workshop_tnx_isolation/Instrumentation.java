@@ -0,0 +1,475 @@
+package workshop_tnx_isolation;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Where does the time go? Wraps the connections handed out by DbConnector and records, per scenario and isolation level:
+ * * statement execution time and rows returned
+ * * transaction duration (START TRANSACTION / setAutoCommit(false) up to COMMIT / ROLLBACK) and commit latency
+ * * lock wait timeouts (1205) and deadlocks (1213)
+ * * *
+ * Off by default, switch it on with -Dtnx.instrumentation=true or 'Instrumentation.enable()'.
+ * 'startReporting' prints a line per scenario/isolation level periodically and keeps a JSON dump up to date.
+ * Every statement and transaction is also a JFR event ('workshop.Statement', 'workshop.Transaction'), start a
+ * recording (-XX:StartFlightRecording) to line them up with GC pauses and thread activity.
+ */
+public class Instrumentation {
+
+    private static volatile boolean enabled = Boolean.getBoolean("tnx.instrumentation");
+    private static final Map<String, Series> series = new ConcurrentHashMap<>();
+    private static volatile ScheduledExecutorService reporter;
+
+    /**
+     * Everything recorded for one scenario at one isolation level.
+     */
+    public static final class Series {
+        final String scenario;
+        final String isolationLevel;
+        public final LatencyHistogram statements = new LatencyHistogram();
+        public final LatencyHistogram transactions = new LatencyHistogram();
+        public final LatencyHistogram commits = new LatencyHistogram();
+        public final LongAdder rowsReturned = new LongAdder();
+        public final LongAdder rollbacks = new LongAdder();
+        public final LongAdder lockWaitTimeouts = new LongAdder();
+        public final LongAdder deadlocks = new LongAdder();
+        public final LongAdder errors = new LongAdder();
+
+        Series(String scenario, String isolationLevel) {
+            this.scenario = scenario;
+            this.isolationLevel = isolationLevel;
+        }
+
+        @Override
+        public String toString() {
+            return scenario + " [" + isolationLevel + "]"
+                    + " statements{" + statements.summary() + "}"
+                    + " transactions{" + transactions.summary() + "}"
+                    + " commits{" + commits.summary() + "}"
+                    + " rows=" + rowsReturned.sum() + " rollbacks=" + rollbacks.sum()
+                    + " lockWaitTimeouts=" + lockWaitTimeouts.sum() + " deadlocks=" + deadlocks.sum()
+                    + " errors=" + errors.sum();
+        }
+    }
+
+    @Name("workshop.Statement")
+    @Label("SQL Statement")
+    @Category("Workshop")
+    static class StatementEvent extends Event {
+        @Label("Scenario")
+        String scenario;
+        @Label("Isolation Level")
+        String isolationLevel;
+        @Label("SQL")
+        String sql;
+        @Label("Error Code")
+        int errorCode;
+    }
+
+    @Name("workshop.Transaction")
+    @Label("Transaction")
+    @Category("Workshop")
+    static class TransactionEvent extends Event {
+        @Label("Scenario")
+        String scenario;
+        @Label("Isolation Level")
+        String isolationLevel;
+        @Label("Committed")
+        boolean committed;
+    }
+
+    private Instrumentation() {
+    }
+
+    public static void enable() {
+        enabled = true;
+    }
+
+    public static void disable() {
+        enabled = false;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static Series series(String scenario, String isolationLevel) {
+        return series.computeIfAbsent(scenario + "|" + isolationLevel, k -> new Series(scenario, isolationLevel));
+    }
+
+    public static void reset() {
+        series.clear();
+    }
+
+    /**
+     * One line per scenario and isolation level.
+     */
+    public static String snapshot() {
+        StringBuilder ret = new StringBuilder();
+        for (Series s : new TreeMap<>(series).values()) {
+            ret.append(s).append('\n');
+        }
+        return ret.toString();
+    }
+
+    /**
+     * The same numbers as 'snapshot', as JSON. Latencies are in nanoseconds.
+     */
+    public static String toJson() {
+        StringBuilder ret = new StringBuilder("[");
+        boolean first = true;
+        for (Series s : new TreeMap<>(series).values()) {
+            ret.append(first ? "\n" : ",\n");
+            first = false;
+            ret.append("  {\"scenario\": \"").append(s.scenario).append('"')
+                    .append(", \"isolationLevel\": \"").append(s.isolationLevel).append('"')
+                    .append(", \"statements\": ").append(json(s.statements))
+                    .append(", \"transactions\": ").append(json(s.transactions))
+                    .append(", \"commits\": ").append(json(s.commits))
+                    .append(", \"rowsReturned\": ").append(s.rowsReturned.sum())
+                    .append(", \"rollbacks\": ").append(s.rollbacks.sum())
+                    .append(", \"lockWaitTimeouts\": ").append(s.lockWaitTimeouts.sum())
+                    .append(", \"deadlocks\": ").append(s.deadlocks.sum())
+                    .append(", \"errors\": ").append(s.errors.sum())
+                    .append('}');
+        }
+        return ret.append("\n]\n").toString();
+    }
+
+    private static String json(LatencyHistogram h) {
+        return String.format(Locale.ROOT, "{\"count\": %d, \"mean\": %d, \"p50\": %d, \"p99\": %d, \"p999\": %d, \"max\": %d}",
+                h.count(), h.mean(), h.percentile(50), h.percentile(99), h.percentile(99.9), h.max());
+    }
+
+    /**
+     * Every 'period': print the snapshot and rewrite 'dumpFile' (if not null) with the JSON version.
+     */
+    public static synchronized void startReporting(Duration period, Path dumpFile) {
+        stopReporting();
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "instrumentation-reporter");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(() -> {
+            System.out.print(snapshot());
+            if (dumpFile != null) {
+                writeDump(dumpFile);
+            }
+        }, period.toMillis(), period.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized void stopReporting() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+
+    public static void writeDump(Path dumpFile) {
+        try {
+            Path tmp = dumpFile.resolveSibling(dumpFile.getFileName() + ".tmp");
+            Files.writeString(tmp, toJson(), StandardCharsets.UTF_8);
+            Files.move(tmp, dumpFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Wraps 'connection' so everything done through it gets recorded under 'scenario'. No-op when disabled.
+     */
+    public static Connection wrap(Connection connection, String scenario) {
+        if (!enabled) {
+            return connection;
+        }
+        return (Connection) Proxy.newProxyInstance(Instrumentation.class.getClassLoader(), new Class<?>[]{Connection.class},
+                new ConnectionHandler(connection, scenario));
+    }
+
+    /**
+     * The real connection behind a wrapped one, or the connection itself.
+     */
+    public static Connection unwrap(Connection connection) {
+        if (Proxy.isProxyClass(connection.getClass()) && Proxy.getInvocationHandler(connection) instanceof ConnectionHandler h) {
+            return h.target;
+        }
+        return connection;
+    }
+
+    /**
+     * Wraps a statement that was prepared on the real connection (e.g. cached) as if 'connection' had prepared it.
+     */
+    public static PreparedStatement wrap(Connection connection, PreparedStatement statement, String sql) {
+        if (Proxy.isProxyClass(connection.getClass()) && Proxy.getInvocationHandler(connection) instanceof ConnectionHandler h) {
+            return (PreparedStatement) h.wrapStatement(statement, PreparedStatement.class, sql);
+        }
+        return statement;
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Keeps track of the transaction state of one borrowed connection. Used by one thread at a time.
+     */
+    private static final class ConnectionHandler implements InvocationHandler {
+        private static final long IMPLICIT = -1;
+
+        private final Connection target;
+        private final String scenario;
+        private String sessionIsolation;
+        private String nextTransactionIsolation;
+        private String transactionIsolation;
+        private long transactionStart;
+        private TransactionEvent transactionEvent;
+
+        ConnectionHandler(Connection target, String scenario) {
+            this.target = target;
+            this.scenario = scenario;
+        }
+
+        private String isolation() throws SQLException {
+            if (transactionIsolation != null) {
+                return transactionIsolation;
+            }
+            if (sessionIsolation == null) {
+                sessionIsolation = name(target.getTransactionIsolation());
+            }
+            return nextTransactionIsolation != null ? nextTransactionIsolation : sessionIsolation;
+        }
+
+        private Series current() throws SQLException {
+            return series(scenario, isolation());
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "createStatement":
+                    return wrapStatement((Statement) Instrumentation.invoke(target, method, args), Statement.class, null);
+                case "prepareStatement":
+                    return wrapStatement((Statement) Instrumentation.invoke(target, method, args), PreparedStatement.class, (String) args[0]);
+                case "prepareCall":
+                    return wrapStatement((Statement) Instrumentation.invoke(target, method, args), CallableStatement.class, (String) args[0]);
+                case "setAutoCommit":
+                    if ((Boolean) args[0]) {
+                        end(true, IMPLICIT); // switching autocommit back on commits whatever is open
+                    }
+                    return Instrumentation.invoke(target, method, args);
+                case "setTransactionIsolation":
+                    sessionIsolation = name((Integer) args[0]);
+                    return Instrumentation.invoke(target, method, args);
+                case "commit":
+                    return timedEnd(method, args, true);
+                case "rollback":
+                    return timedEnd(method, args, false);
+                case "unwrap":
+                    if (((Class<?>) args[0]).isInstance(target)) {
+                        return target;
+                    }
+                    return Instrumentation.invoke(target, method, args);
+                default:
+                    return Instrumentation.invoke(target, method, args);
+            }
+        }
+
+        private Object timedEnd(Method method, Object[] args, boolean commit) throws Throwable {
+            long start = System.nanoTime();
+            try {
+                Object ret = Instrumentation.invoke(target, method, args);
+                end(commit, System.nanoTime() - start);
+                return ret;
+            } catch (SQLException e) {
+                failed(current(), e);
+                throw e;
+            }
+        }
+
+        private void begin() throws SQLException {
+            transactionIsolation = isolation();
+            nextTransactionIsolation = null;
+            transactionStart = System.nanoTime();
+            transactionEvent = new TransactionEvent();
+            transactionEvent.begin();
+        }
+
+        /**
+         * 'commitNanos' is IMPLICIT for commits that happen as a side effect of another call, those aren't timed
+         * and stay out of the commit histogram.
+         */
+        private void end(boolean committed, long commitNanos) throws SQLException {
+            if (transactionIsolation == null) {
+                return;
+            }
+            Series s = current();
+            s.transactions.record(System.nanoTime() - transactionStart);
+            if (committed) {
+                if (commitNanos != IMPLICIT) {
+                    s.commits.record(commitNanos);
+                }
+            } else {
+                s.rollbacks.increment();
+            }
+            if (transactionEvent.shouldCommit()) {
+                transactionEvent.scenario = scenario;
+                transactionEvent.isolationLevel = transactionIsolation;
+                transactionEvent.committed = committed;
+                transactionEvent.commit();
+            }
+            transactionIsolation = null;
+            transactionEvent = null;
+        }
+
+        /**
+         * Statements can start and end transactions too, scenarios mostly do it with plain SQL.
+         */
+        private void beforeStatement(String sql) throws SQLException {
+            if (transactionIsolation == null && !target.getAutoCommit()) {
+                begin(); // with autocommit off the first statement starts the transaction
+            }
+            if (sql == null) {
+                return;
+            }
+            String s = sql.trim().toUpperCase(Locale.ROOT);
+            if (s.startsWith("SET TRANSACTION ISOLATION LEVEL")) {
+                nextTransactionIsolation = stripSemicolon(s.substring("SET TRANSACTION ISOLATION LEVEL".length()).trim());
+            } else if (s.startsWith("SET SESSION TRANSACTION ISOLATION LEVEL")) {
+                sessionIsolation = stripSemicolon(s.substring("SET SESSION TRANSACTION ISOLATION LEVEL".length()).trim());
+            } else if (s.startsWith("START TRANSACTION") || s.startsWith("BEGIN")) {
+                end(true, IMPLICIT); // an open transaction gets implicitly committed
+                begin();
+            }
+        }
+
+        private void afterStatement(String sql, long nanos) throws SQLException {
+            if (sql == null) {
+                return;
+            }
+            String s = sql.trim().toUpperCase(Locale.ROOT);
+            if (s.startsWith("COMMIT")) {
+                end(true, nanos);
+            } else if (s.startsWith("ROLLBACK")) {
+                end(false, nanos);
+            }
+        }
+
+        private void failed(Series s, SQLException e) {
+            s.errors.increment();
+            if (e.getErrorCode() == 1205) {
+                s.lockWaitTimeouts.increment();
+            } else if (e.getErrorCode() == 1213) {
+                s.deadlocks.increment();
+            }
+        }
+
+        Object wrapStatement(Statement statement, Class<?> type, String preparedSql) {
+            return Proxy.newProxyInstance(Instrumentation.class.getClassLoader(), new Class<?>[]{type},
+                    (proxy, method, args) -> {
+                        String name = method.getName();
+                        if (name.startsWith("execute")) {
+                            String sql = args != null && args.length > 0 && args[0] instanceof String q ? q : preparedSql;
+                            return execute(statement, method, args, sql);
+                        }
+                        if (name.equals("getResultSet") || name.equals("getGeneratedKeys")) {
+                            return wrapResultSet((ResultSet) Instrumentation.invoke(statement, method, args));
+                        }
+                        if (name.equals("getConnection")) {
+                            return statement.getConnection();
+                        }
+                        return Instrumentation.invoke(statement, method, args);
+                    });
+        }
+
+        private Object execute(Statement statement, Method method, Object[] args, String sql) throws Throwable {
+            beforeStatement(sql);
+            StatementEvent event = new StatementEvent();
+            event.begin();
+            long start = System.nanoTime();
+            Series s = current();
+            try {
+                Object ret = Instrumentation.invoke(statement, method, args);
+                long nanos = System.nanoTime() - start;
+                s.statements.record(nanos);
+                afterStatement(sql, nanos);
+                if (ret instanceof ResultSet rs) {
+                    return wrapResultSet(rs);
+                }
+                return ret;
+            } catch (SQLException e) {
+                s.statements.record(System.nanoTime() - start);
+                failed(s, e);
+                event.errorCode = e.getErrorCode();
+                throw e;
+            } finally {
+                if (event.shouldCommit()) {
+                    event.scenario = scenario;
+                    event.isolationLevel = s.isolationLevel;
+                    event.sql = sql;
+                    event.commit();
+                }
+            }
+        }
+
+        private ResultSet wrapResultSet(ResultSet rs) throws SQLException {
+            if (rs == null) {
+                return null;
+            }
+            Series s = current();
+            return (ResultSet) Proxy.newProxyInstance(Instrumentation.class.getClassLoader(), new Class<?>[]{ResultSet.class},
+                    (proxy, method, args) -> {
+                        Object ret = Instrumentation.invoke(rs, method, args);
+                        if (method.getName().equals("next") && (Boolean) ret) {
+                            s.rowsReturned.increment();
+                        }
+                        return ret;
+                    });
+        }
+
+        private static String stripSemicolon(String s) {
+            return s.endsWith(";") ? s.substring(0, s.length() - 1).trim() : s;
+        }
+
+        private static String name(int jdbcLevel) {
+            return switch (jdbcLevel) {
+                case Connection.TRANSACTION_READ_UNCOMMITTED -> "READ UNCOMMITTED";
+                case Connection.TRANSACTION_READ_COMMITTED -> "READ COMMITTED";
+                case Connection.TRANSACTION_SERIALIZABLE -> "SERIALIZABLE";
+                default -> "REPEATABLE READ";
+            };
+        }
+    }
+}
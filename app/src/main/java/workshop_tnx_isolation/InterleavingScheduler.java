@@ -0,0 +1,158 @@
+package workshop_tnx_isolation;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs the steps of concurrent transactions in an exact order, instead of hoping SLEEP(3) and SLEEP(6) line up.
+ * * *
+ * A schedule is a list of step labels, e.g. ["leaderboards:eu", "relocate", "leaderboards:non_eu"].
+ * Each transaction runs on its own thread and calls 'step(label)' right before the statements of that step.
+ * The call blocks until it's that step's turn. A step ends when its thread reaches its next step, or calls 'done()'.
+ * * *
+ * A step can get stuck waiting for a database lock held by a step that is scheduled later (SERIALIZABLE does that a lot).
+ * If the running step takes longer than 'blockedAfter' it is considered blocked, and the schedule moves on without it.
+ * The trace shows it as "label (blocked)". That's the only place where time matters, everything else is immediate.
+ * * *
+ * Steps whose turn is already over (e.g. a transaction being retried) run without waiting.
+ */
+public class InterleavingScheduler {
+    private final List<String> schedule;
+    private final Map<String, Integer> positions = new HashMap<>();
+    private final long blockedAfterNanos;
+    private final long giveUpAfterNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition advanced = lock.newCondition();
+    private final Map<Thread, Integer> running = new HashMap<>();
+    private final List<String> trace = new ArrayList<>();
+    private int position;
+    private long positionStartedAt = -1;
+
+    public InterleavingScheduler(List<String> schedule, Duration blockedAfter) {
+        this.schedule = List.copyOf(schedule);
+        for (int i = 0; i < schedule.size(); i++) {
+            if (positions.put(schedule.get(i), i) != null) {
+                throw new IllegalArgumentException("Step '" + schedule.get(i) + "' appears twice in the schedule");
+            }
+        }
+        this.blockedAfterNanos = blockedAfter.toNanos();
+        this.giveUpAfterNanos = Math.max(TimeUnit.SECONDS.toNanos(30), blockedAfterNanos * schedule.size() * 2);
+    }
+
+    public static InterleavingScheduler of(Duration blockedAfter, String... schedule) {
+        return new InterleavingScheduler(List.of(schedule), blockedAfter);
+    }
+
+    /**
+     * Ends the calling thread's current step, then waits until 'label' is next.
+     */
+    public void step(String label) {
+        Integer target = positions.get(label);
+        if (target == null) {
+            throw new IllegalArgumentException("Step '" + label + "' is not in the schedule " + schedule);
+        }
+        lock.lock();
+        try {
+            finishCurrent();
+            long deadline = System.nanoTime() + giveUpAfterNanos;
+            while (position < target) {
+                long now = System.nanoTime();
+                if (now > deadline) {
+                    throw new IllegalStateException("Gave up waiting for step '" + label + "', schedule stuck at '"
+                            + schedule.get(position) + "'. Trace so far " + trace);
+                }
+                if (positionStartedAt >= 0 && now - positionStartedAt >= blockedAfterNanos) {
+                    trace.add(schedule.get(position) + " (blocked)");
+                    advance();
+                    continue;
+                }
+                long wait = positionStartedAt >= 0 ? blockedAfterNanos - (now - positionStartedAt) : deadline - now;
+                advanced.awaitNanos(Math.max(1, wait));
+            }
+            if (position == target) {
+                positionStartedAt = System.nanoTime();
+                running.put(Thread.currentThread(), target);
+                // Waiters slept without a deadline while nothing was running, now they have to time this step.
+                advanced.signalAll();
+            }
+            trace.add(label);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ends the calling thread's current step. Call it when the transaction is over.
+     */
+    public void done() {
+        lock.lock();
+        try {
+            finishCurrent();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The order in which steps actually ran.
+     */
+    public List<String> trace() {
+        lock.lock();
+        try {
+            return new ArrayList<>(trace);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void finishCurrent() {
+        Integer current = running.remove(Thread.currentThread());
+        // If it was declared blocked the schedule already moved on, nothing to do.
+        if (current != null && current == position) {
+            advance();
+        }
+    }
+
+    private void advance() {
+        position++;
+        positionStartedAt = -1;
+        advanced.signalAll();
+    }
+
+    /**
+     * Every way to interleave the given transactions, keeping each transaction's own steps in order.
+     * For two transactions of n and m steps that's (n+m)! / (n! m!) schedules.
+     */
+    public static List<List<String>> interleavings(List<List<String>> transactions) {
+        List<List<String>> ret = new ArrayList<>();
+        interleave(transactions, new int[transactions.size()], new ArrayList<>(), ret);
+        return ret;
+    }
+
+    private static void interleave(List<List<String>> transactions, int[] next, List<String> prefix, List<List<String>> out) {
+        boolean any = false;
+        for (int t = 0; t < transactions.size(); t++) {
+            if (next[t] < transactions.get(t).size()) {
+                any = true;
+                prefix.add(transactions.get(t).get(next[t]++));
+                interleave(transactions, next, prefix, out);
+                next[t]--;
+                prefix.remove(prefix.size() - 1);
+            }
+        }
+        if (!any) {
+            out.add(Collections.unmodifiableList(new ArrayList<>(prefix)));
+        }
+    }
+}
@@ -0,0 +1,452 @@
+package workshop_tnx_isolation;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Finds, per transaction type, the weakest isolation level that still gives correct results, and what it buys.
+ * * *
+ * A Case is one M1-M4 transaction plus the one that interferes with it in that scenario. For every isolation level
+ * the advisor:
+ * * checks  : runs the pair in EVERY interleaving of their steps (InterleavingScheduler) and compares the outcome,
+ *             what the transaction returned plus what's left in the tables, with the two serial orders. Correct, as
+ *             M4 puts it, means "the same outcome as running them one after the other, in either order".
+ * * measures: 'clients' threads run the pair for 'duration' on the same rows, half of them each,
+ *             counting commits and deadlock / lock wait aborts of the transaction.
+ * The recommendation is the weakest level that is correct and stays correct at every stronger level,
+ * with its throughput next to SERIALIZABLE's.
+ * * *
+ * Only as good as the interference: a level is "correct" for the concurrent transactions in its Case, not for any
+ * transaction anybody might write later. Add a Case for every pairing that happens in production.
+ * The interfering transaction always runs at REPEATABLE READ, MySql's default, only the transaction's level varies.
+ */
+public class IsolationAdvisor {
+    private static final String INTERFERENCE_LEVEL = "REPEATABLE READ";
+    private static final Duration BLOCKED_AFTER = Duration.ofMillis(300);
+    private static final int MAX_ATTEMPTS = 5;
+
+    /**
+     * A transaction that calls 'step' before each of its steps. 'run' is 0 while checking, and different for every
+     * run while measuring, for transactions that need fresh keys.
+     */
+    public interface Body {
+        String apply(Connection conn, String isolationLevel, Consumer<String> step, long run) throws SQLException;
+    }
+
+    public record Case(String name, DbConnector.TransactionBody<String> setup,
+                       List<String> transactionSteps, Body transaction,
+                       List<String> interferenceSteps, Body interference,
+                       DbConnector.TransactionBody<String> outcome) {
+    }
+
+    /**
+     * One level for one Case. 'violations' are the schedules whose outcome no serial order produces.
+     */
+    public record Verdict(String isolationLevel, int schedules, List<String> violations, double throughput,
+                          double abortRate) {
+        public boolean correct() {
+            return violations.isEmpty();
+        }
+    }
+
+    public record Advice(String name, List<Verdict> verdicts, String recommended, double gainVsSerializable) {
+        @Override
+        public String toString() {
+            StringBuilder ret = new StringBuilder(name).append('\n');
+            for (Verdict v : verdicts) {
+                ret.append(String.format("  %-17s %s  %8.1f tx/s  aborts=%.1f%%%n", v.isolationLevel(),
+                        v.correct() ? "correct   " : v.violations().size() + "/" + v.schedules() + " wrong",
+                        v.throughput(), v.abortRate() * 100));
+                v.violations().stream().limit(1).forEach(w -> ret.append("      e.g. ").append(w).append('\n'));
+            }
+            ret.append(recommended == null ? "  -> no level is correct, not even SERIALIZABLE\n"
+                    : String.format("  -> %s, %+.0f%% throughput vs SERIALIZABLE%n", recommended, gainVsSerializable * 100));
+            return ret.toString();
+        }
+    }
+
+    private final DbConnector connector;
+    private final int clients;
+    private final Duration duration;
+
+    public IsolationAdvisor(DbConnector connector, int clients, Duration duration) {
+        this.connector = connector;
+        this.clients = clients;
+        this.duration = duration;
+    }
+
+    public Advice advise(Case c) {
+        Set<String> serial = Set.of(
+                runSchedule(c, concat(c.transactionSteps(), c.interferenceSteps()), "SERIALIZABLE"),
+                runSchedule(c, concat(c.interferenceSteps(), c.transactionSteps()), "SERIALIZABLE"));
+        List<List<String>> schedules = InterleavingScheduler.interleavings(
+                List.of(c.transactionSteps(), c.interferenceSteps()));
+        List<Verdict> verdicts = new ArrayList<>();
+        for (String level : Workloads.ISOLATION_LEVELS) {
+            List<String> violations = new ArrayList<>();
+            for (List<String> schedule : schedules) {
+                String outcome;
+                try {
+                    outcome = runSchedule(c, schedule, level);
+                } catch (CompletionException e) {
+                    // Stuck schedule or a transaction that kept failing: no outcome to compare, so not correct.
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    violations.add(schedule + " -> failed: " + cause);
+                    continue;
+                }
+                if (!serial.contains(outcome)) {
+                    violations.add(schedule + " -> " + outcome);
+                }
+            }
+            double[] measured = measure(c, level, violations);
+            verdicts.add(new Verdict(level, schedules.size(), violations, measured[0], measured[1]));
+        }
+        // Weakest first: the recommendation is the first level from which on every level is correct.
+        Verdict recommended = null;
+        for (int i = verdicts.size() - 1; i >= 0 && verdicts.get(i).correct(); i--) {
+            recommended = verdicts.get(i);
+        }
+        if (recommended == null) {
+            return new Advice(c.name(), verdicts, null, 0);
+        }
+        double serializable = verdicts.get(verdicts.size() - 1).throughput();
+        double gain = serializable == 0 ? 0 : recommended.throughput() / serializable - 1;
+        return new Advice(c.name(), verdicts, recommended.isolationLevel(), gain);
+    }
+
+    /**
+     * Both transactions once, in 'schedule' order. An aborted one is run again, as RetryPolicy would.
+     * Throws CompletionException when either transaction fails for good, or the schedule gets stuck.
+     */
+    private String runSchedule(Case c, List<String> schedule, String isolationLevel) {
+        setup(c);
+        InterleavingScheduler scheduler = new InterleavingScheduler(schedule, BLOCKED_AFTER);
+        CompletableFuture<String> transaction = connector.runAsync(
+                conn -> untilCommitted(conn, c.transaction(), isolationLevel, scheduler));
+        CompletableFuture<String> interference = connector.runAsync(
+                conn -> untilCommitted(conn, c.interference(), INTERFERENCE_LEVEL, scheduler));
+        CompletableFuture.allOf(transaction, interference).join();
+        List<String> outcome = new ArrayList<>(1);
+        connector.run(conn -> {
+            try {
+                outcome.add(c.outcome().apply(conn));
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+            return "";
+        });
+        return "returned " + transaction.join() + ", left " + outcome.get(0);
+    }
+
+    private static String untilCommitted(Connection conn, Body body, String isolationLevel,
+                                         InterleavingScheduler scheduler) throws SQLException {
+        try {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    return body.apply(conn, isolationLevel, scheduler::step, 0);
+                } catch (SQLException e) {
+                    rollback(conn);
+                    if (!RetryPolicy.isRetryable(e) || attempt == MAX_ATTEMPTS) {
+                        throw e;
+                    }
+                }
+            }
+        } finally {
+            scheduler.done();
+        }
+    }
+
+    /**
+     * {committed transactions per second, aborted / attempted}
+     * A client that fails for good stops there and the failure goes into 'violations', the others keep measuring.
+     */
+    private double[] measure(Case c, String isolationLevel, List<String> violations) {
+        setup(c);
+        LongAdder committed = new LongAdder();
+        LongAdder aborted = new LongAdder();
+        AtomicLong runs = new AtomicLong();
+        Consumer<String> noSteps = label -> {
+        };
+        long end = System.nanoTime() + duration.toNanos();
+        List<CompletableFuture<String>> clientsDone = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            clientsDone.add(connector.runAsync(conn -> {
+                while (System.nanoTime() < end) {
+                    boolean isTransaction = ThreadLocalRandom.current().nextBoolean();
+                    try {
+                        if (isTransaction) {
+                            c.transaction().apply(conn, isolationLevel, noSteps, runs.incrementAndGet());
+                            committed.increment();
+                        } else {
+                            c.interference().apply(conn, INTERFERENCE_LEVEL, noSteps, runs.incrementAndGet());
+                        }
+                    } catch (SQLException e) {
+                        rollback(conn);
+                        if (!RetryPolicy.isRetryable(e)) {
+                            synchronized (violations) {
+                                violations.add("measuring " + (isTransaction ? "transaction" : "interference")
+                                        + " -> failed: " + e);
+                            }
+                            return "";
+                        }
+                        if (isTransaction) {
+                            aborted.increment();
+                        }
+                    }
+                }
+                return "";
+            }));
+        }
+        try {
+            CompletableFuture.allOf(clientsDone.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            violations.add("measuring -> failed: " + (e.getCause() != null ? e.getCause() : e));
+        }
+        long attempted = committed.sum() + aborted.sum();
+        return new double[]{committed.sum() / (duration.toNanos() / 1e9),
+                attempted == 0 ? 0 : (double) aborted.sum() / attempted};
+    }
+
+    private void setup(Case c) {
+        connector.run(conn -> {
+            try {
+                c.setup().apply(conn);
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+            return "";
+        });
+    }
+
+    private static void rollback(Connection conn) {
+        try (Statement st = conn.createStatement()) {
+            st.execute("ROLLBACK");
+        } catch (SQLException ignored) {
+        }
+    }
+
+    private static List<String> concat(List<String> first, List<String> second) {
+        List<String> ret = new ArrayList<>(first);
+        ret.addAll(second);
+        return ret;
+    }
+
+    private static String rows(Connection conn, String query) throws SQLException {
+        List<String> ret = new ArrayList<>();
+        try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery(query)) {
+            int columns = rs.getMetaData().getColumnCount();
+            while (rs.next()) {
+                List<String> row = new ArrayList<>(columns);
+                for (int i = 1; i <= columns; i++) {
+                    row.add(rs.getString(i));
+                }
+                ret.add(String.join("|", row));
+            }
+        }
+        return ret.toString();
+    }
+
+    private static void begin(Statement st, String isolationLevel) throws SQLException {
+        st.execute("SET TRANSACTION ISOLATION LEVEL " + isolationLevel);
+        st.execute("START TRANSACTION");
+    }
+
+    /**
+     * M1: the giveaway, next to a smaller one that updates the same two users in the opposite order.
+     */
+    public static Case giveaway() {
+        return new Case("giveaway (M1)",
+                conn -> {
+                    try (Statement st = conn.createStatement()) {
+                        st.execute("DROP TABLE IF EXISTS UserInventory");
+                        st.execute("CREATE TABLE UserInventory(username varchar(255) PRIMARY KEY, gbCount int)");
+                        st.execute("INSERT INTO UserInventory VALUES ('Dorin', 0), ('Porin', 0)");
+                    }
+                    return "";
+                },
+                List.of("give:dorin", "give:porin"),
+                (conn, level, step, run) -> {
+                    try (Statement st = conn.createStatement()) {
+                        step.accept("give:dorin");
+                        begin(st, level);
+                        st.execute("UPDATE UserInventory SET gbCount = gbCount + 10 WHERE username='Dorin'");
+                        step.accept("give:porin");
+                        st.execute("UPDATE UserInventory SET gbCount = gbCount + 10 WHERE username='Porin'");
+                        st.execute("COMMIT");
+                    }
+                    return "";
+                },
+                List.of("gift"),
+                (conn, level, step, run) -> {
+                    try (Statement st = conn.createStatement()) {
+                        step.accept("gift");
+                        begin(st, level);
+                        st.execute("UPDATE UserInventory SET gbCount = gbCount + 1 WHERE username='Porin'");
+                        st.execute("UPDATE UserInventory SET gbCount = gbCount + 1 WHERE username='Dorin'");
+                        st.execute("COMMIT");
+                    }
+                    return "";
+                },
+                conn -> rows(conn, "SELECT username, gbCount FROM UserInventory ORDER BY username"));
+    }
+
+    /**
+     * M2: the tax report, next to Dorin's raise that gets rolled back.
+     */
+    public static Case taxReport() {
+        return new Case("tax report (M2)",
+                conn -> {
+                    try (Statement st = conn.createStatement()) {
+                        st.execute("DROP TABLE IF EXISTS MonthlyPay");
+                        st.execute("DROP TABLE IF EXISTS TaxReport");
+                        st.execute("CREATE TABLE MonthlyPay(username varchar(255) PRIMARY KEY, paycheck int)");
+                        st.execute("CREATE TABLE TaxReport(username varchar(255) PRIMARY KEY, isRich boolean)");
+                        st.execute("INSERT INTO MonthlyPay VALUES ('RichieRich', 1000), ('RichieNotRich', 20), ('Dorin', 0)");
+                    }
+                    return "";
+                },
+                List.of("tax:insert", "tax:commit"),
+                (conn, level, step, run) -> {
+                    try (Statement st = conn.createStatement()) {
+                        step.accept("tax:insert");
+                        begin(st, level);
+                        // Read into Java and write back, like the scenario: REPLACE ... SELECT would lock what it reads.
+                        Map<String, Boolean> isRich = new LinkedHashMap<>();
+                        try (ResultSet rs = st.executeQuery("SELECT username, paycheck>=100 FROM MonthlyPay")) {
+                            while (rs.next()) {
+                                isRich.put(rs.getString(1), rs.getBoolean(2));
+                            }
+                        }
+                        for (Map.Entry<String, Boolean> e : isRich.entrySet()) {
+                            DbConnector.prepare(conn, "REPLACE INTO TaxReport VALUES(?, ?)", e.getKey(), e.getValue())
+                                    .executeUpdate();
+                        }
+                        step.accept("tax:commit");
+                        st.execute("COMMIT");
+                    }
+                    return "";
+                },
+                List.of("raise:update", "raise:rollback"),
+                (conn, level, step, run) -> {
+                    try (Statement st = conn.createStatement()) {
+                        step.accept("raise:update");
+                        begin(st, level);
+                        st.execute("UPDATE MonthlyPay SET paycheck = paycheck + 100 WHERE username='Dorin'");
+                        step.accept("raise:rollback");
+                        st.execute("ROLLBACK");
+                    }
+                    return "";
+                },
+                conn -> rows(conn, "SELECT username, isRich FROM TaxReport ORDER BY username"));
+    }
+
+    /**
+     * M3: both leaderboards, next to Dorin moving out of Europe.
+     */
+    public static Case leaderboards() {
+        return new Case("leaderboards (M3)",
+                conn -> {
+                    try (Statement st = conn.createStatement()) {
+                        st.execute("DROP TABLE IF EXISTS User");
+                        st.execute("DROP TABLE IF EXISTS Leaderboards");
+                        st.execute("CREATE TABLE User(username VARCHAR(255) PRIMARY KEY, livesInEurope BOOLEAN, points INT)");
+                        st.execute("CREATE TABLE Leaderboards(leaderboardName varchar(255) PRIMARY KEY, topScorers VARCHAR(255))");
+                        st.execute("INSERT INTO User VALUES ('Dorin', true, 100), ('Porin', true, 5), ('Xorin', false, 100), ('Borin', false, 100)");
+                    }
+                    return "";
+                },
+                List.of("leaderboards:eu", "leaderboards:non_eu"),
+                (conn, level, step, run) -> {
+                    try (Statement st = conn.createStatement()) {
+                        step.accept("leaderboards:eu");
+                        begin(st, level);
+                        // Plain SELECTs, like Workloads.generateLeaderboards: REPLACE ... SELECT would lock what it reads.
+                        String europe = rows(conn, "SELECT username FROM User WHERE livesInEurope=true AND points >= 100 "
+                                + "ORDER BY username");
+                        DbConnector.prepare(conn, "REPLACE INTO Leaderboards VALUES(?, ?)", "EU", europe).executeUpdate();
+                        step.accept("leaderboards:non_eu");
+                        String world = rows(conn, "SELECT username FROM User WHERE livesInEurope=false AND points >= 100 "
+                                + "ORDER BY username");
+                        DbConnector.prepare(conn, "REPLACE INTO Leaderboards VALUES(?, ?)", "NON_EU", world).executeUpdate();
+                        st.execute("COMMIT");
+                    }
+                    return "";
+                },
+                List.of("relocate"),
+                (conn, level, step, run) -> {
+                    try (Statement st = conn.createStatement()) {
+                        step.accept("relocate");
+                        begin(st, level);
+                        st.execute("UPDATE User SET livesInEurope = NOT livesInEurope WHERE username='Dorin'");
+                        st.execute("COMMIT");
+                    }
+                    return "";
+                },
+                conn -> rows(conn, "SELECT leaderboardName, topScorers FROM Leaderboards ORDER BY leaderboardName"));
+    }
+
+    /**
+     * M4: the checkout, next to an item being added to the same cart. What it returns is part of the outcome:
+     * charging for an item that isn't shipped is the phantom.
+     */
+    public static Case checkout() {
+        return new Case("checkout (M4)",
+                conn -> {
+                    try (Statement st = conn.createStatement()) {
+                        st.execute("DROP TABLE IF EXISTS PurchaseCart");
+                        st.execute("CREATE TABLE PurchaseCart(item VARCHAR(255) PRIMARY KEY, buyer VARCHAR(255) , price INT, taxApplied BOOLEAN)");
+                        st.execute("INSERT INTO PurchaseCart VALUES ('potatoes', 'Dorin', 10, false), ('bread', 'Dorin', 5, false), "
+                                + "('12v_Battery', 'Dorin', 40, false)");
+                    }
+                    return "";
+                },
+                List.of("ship:list", "ship:tax"),
+                (conn, level, step, run) -> {
+                    try (Statement st = conn.createStatement()) {
+                        step.accept("ship:list");
+                        begin(st, level);
+                        String items = rows(conn, "SELECT item FROM PurchaseCart WHERE buyer='Dorin' ORDER BY item");
+                        step.accept("ship:tax");
+                        st.execute("UPDATE PurchaseCart SET price = price + 1, taxApplied=true WHERE buyer='Dorin'");
+                        String total = rows(conn, "SELECT SUM(price) FROM PurchaseCart WHERE buyer='Dorin'");
+                        st.execute("COMMIT");
+                        return "shipped " + items + " charged " + total;
+                    }
+                },
+                List.of("cart:add"),
+                (conn, level, step, run) -> {
+                    try (Statement st = conn.createStatement()) {
+                        step.accept("cart:add");
+                        begin(st, level);
+                        DbConnector.prepare(conn, "INSERT INTO PurchaseCart VALUES (?, 'Dorin', 100, false)",
+                                run == 0 ? "RaspberryPI" : "RaspberryPI" + run).executeUpdate();
+                        st.execute("COMMIT");
+                    }
+                    return "";
+                },
+                conn -> rows(conn, "SELECT item, price, taxApplied FROM PurchaseCart ORDER BY item"));
+    }
+
+    public static void main(String[] args) {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        Duration duration = Duration.ofSeconds(args.length > 1 ? Long.parseLong(args[1]) : 5);
+        IsolationAdvisor advisor = new IsolationAdvisor(new DbConnector(), clients, duration);
+        for (Case c : List.of(giveaway(), taxReport(), leaderboards(), checkout())) {
+            System.out.print(advisor.advise(c));
+        }
+    }
+}
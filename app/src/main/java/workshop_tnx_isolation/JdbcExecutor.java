@@ -0,0 +1,133 @@
+package workshop_tnx_isolation;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * The threads DbConnector.runAsync runs JDBC on. JDBC blocks, so it gets its own threads and the caller's thread
+ * (an event loop, a request handler) never waits on the database.
+ * * *
+ * At most 'concurrency' tasks run at the same time, no point in more than the pool has connections.
+ * At most 'capacity' tasks are accepted (running + waiting). Past that 'submit' doesn't block the caller, it returns a
+ * future already failed with RejectedExecutionException: the database is saturated, slow down or shed load.
+ * * *
+ * With -Dtnx.virtualThreads=true (JDK 21+) every task gets a virtual thread. Waiting for a turn then parks a virtual
+ * thread instead of sitting in a queue, so thousands of in-flight transactions cost a few KB each, not a platform
+ * thread each. On older JDKs the flag is ignored and a fixed pool of platform threads is used.
+ */
+public class JdbcExecutor implements AutoCloseable {
+
+    public record Stats(long submitted, long rejected, int inFlight, boolean virtualThreads) {
+    }
+
+    private final ExecutorService threads;
+    private final boolean virtualThreads;
+    // Only used with virtual threads, a fixed pool already limits how many tasks run at once.
+    private final Semaphore running;
+    private final int capacity;
+    private final Semaphore admitted;
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    public JdbcExecutor(int concurrency, int capacity, boolean virtualThreads) {
+        ExecutorService virtual = virtualThreads ? newVirtualThreadPerTaskExecutor() : null;
+        this.virtualThreads = virtual != null;
+        this.threads = virtual != null ? virtual : Executors.newFixedThreadPool(concurrency, daemonThreads());
+        this.running = virtual != null ? new Semaphore(concurrency) : null;
+        this.capacity = capacity;
+        this.admitted = new Semaphore(capacity);
+    }
+
+    /**
+     * As many threads as 'pool' has connections, room for 64 waiting tasks per connection.
+     */
+    public static JdbcExecutor forPool(ConnectionPool.Config pool) {
+        return new JdbcExecutor(pool.maxSize(), pool.maxSize() * 64, Boolean.getBoolean("tnx.virtualThreads"));
+    }
+
+    public <T> CompletableFuture<T> submit(Supplier<T> task) {
+        if (!admitted.tryAcquire()) {
+            rejected.increment();
+            return CompletableFuture.failedFuture(new RejectedExecutionException(
+                    "JDBC executor is full, " + capacity + " tasks in flight"));
+        }
+        submitted.increment();
+        CompletableFuture<T> ret = new CompletableFuture<>();
+        try {
+            threads.execute(() -> {
+                T result = null;
+                Throwable failure = null;
+                try {
+                    if (running != null) {
+                        running.acquire();
+                    }
+                    try {
+                        result = task.get();
+                    } finally {
+                        if (running != null) {
+                            running.release();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure = e;
+                } catch (Throwable t) {
+                    failure = t;
+                } finally {
+                    admitted.release();
+                }
+                // Completing runs the caller's thenCompose/thenApply stages right here, so the slot is given back
+                // first, a dependent transaction submitted from a stage must not find the executor still full.
+                if (failure != null) {
+                    ret.completeExceptionally(failure);
+                } else {
+                    ret.complete(result);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            admitted.release();
+            ret.completeExceptionally(e);
+        }
+        return ret;
+    }
+
+    public Stats stats() {
+        return new Stats(submitted.sum(), rejected.sum(), inFlight(), virtualThreads);
+    }
+
+    private int inFlight() {
+        return capacity - admitted.availablePermits();
+    }
+
+    @Override
+    public void close() {
+        threads.shutdown();
+    }
+
+    private static ThreadFactory daemonThreads() {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, "jdbc-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() when the JDK has it. The build targets 17, hence the reflection.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
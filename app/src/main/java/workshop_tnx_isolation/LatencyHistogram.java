@@ -0,0 +1,108 @@
+package workshop_tnx_isolation;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed size, lock-free latency histogram. Values are nanoseconds.
+ * * *
+ * Buckets are log-linear: exact below 64ns, then every power of two is split in 32 sub-buckets, so any recorded
+ * value is off by at most ~3%. That's 1920 buckets covering everything up to Long.MAX_VALUE, recording is a couple
+ * of bit operations and one atomic increment.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKETS = 32;
+    private static final int LINEAR = 64;
+    private static final int BUCKETS = LINEAR + (63 - 6 + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(index(value));
+        total.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public long count() {
+        return total.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public long mean() {
+        long n = total.sum();
+        return n == 0 ? 0 : sum.sum() / n;
+    }
+
+    /**
+     * The value below which 'percentile' (0-100) of the recorded values fall.
+     */
+    public long percentile(double percentile) {
+        long n = total.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100.0 * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= Math.max(1, rank)) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        total.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    /**
+     * e.g. "n=1200 p50=310us p99=2100us p999=8200us max=9100us"
+     */
+    public String summary() {
+        return "n=" + count()
+                + " p50=" + micros(percentile(50))
+                + " p99=" + micros(percentile(99))
+                + " p999=" + micros(percentile(99.9))
+                + " max=" + micros(max());
+    }
+
+    private static String micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos) + "us";
+    }
+
+    static int index(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value); // >= 6
+        int shift = magnitude - 5;
+        return LINEAR + (magnitude - 6) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    static long upperBound(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int magnitude = (index - LINEAR) / SUB_BUCKETS + 6;
+        int sub = (index - LINEAR) % SUB_BUCKETS;
+        int shift = magnitude - 5;
+        long lower = (long) (SUB_BUCKETS + sub) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
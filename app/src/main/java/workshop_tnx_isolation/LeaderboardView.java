@@ -0,0 +1,219 @@
+package workshop_tnx_isolation;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * M3's EU and NON_EU leaderboards kept up to date in memory instead of rebuilt with two scans of User every time.
+ * * *
+ * 'rebuild' makes ONE pass over the users with at least 'minPoints' points and sorts them into their region's board,
+ * highest points first. After that the boards are only touched by 'update' (and 'relocate', 'addPoints'): the change
+ * runs as a transaction on User, and once it has committed the user is moved between or within the boards.
+ * A change that rolls back never shows. Reads ('top', 'boards') never touch the database.
+ * * *
+ * Ordering: each change locks its User row (SELECT ... FOR UPDATE) and takes a sequence number while holding it, so
+ * two changes to one user get their numbers in commit order. Applying them to the boards happens after the lock is
+ * gone and may happen in either order, the one with the lower number is simply dropped.
+ * * *
+ * 'boards' returns both boards from one point in time. Reading EU and then NON_EU while Dorin moves can't put him on
+ * both, or on neither: the very anomaly M3 is about, avoided in memory with a StampedLock (optimistic reads, retried
+ * under the read lock if a change came in between).
+ * * *
+ * Only changes made through this view are seen. Anything else writing to User has to be followed by 'rebuild'.
+ */
+public class LeaderboardView {
+
+    public enum Region {EU, NON_EU}
+
+    public record Player(String username, boolean livesInEurope, int points) {
+        Region region() {
+            return livesInEurope ? Region.EU : Region.NON_EU;
+        }
+    }
+
+    private record Entry(Player player, long seq) {
+    }
+
+    private static final Comparator<Player> RANKING = Comparator.comparingInt(Player::points).reversed()
+            .thenComparing(Player::username);
+
+    private final DbConnector connector;
+    private final int minPoints;
+    private final Map<Region, ConcurrentSkipListSet<Player>> boards = new EnumMap<>(Region.class);
+    // Guarded by 'boardsLock' (write mode).
+    private final Map<String, Entry> players = new HashMap<>();
+    private final StampedLock boardsLock = new StampedLock();
+    // Changes share it, 'rebuild' has it to itself: nothing commits while the scan runs.
+    private final ReentrantReadWriteLock rebuildLock = new ReentrantReadWriteLock();
+    private final AtomicLong seq = new AtomicLong();
+
+    public LeaderboardView(DbConnector connector, int minPoints) {
+        this.connector = connector;
+        this.minPoints = minPoints;
+        for (Region region : Region.values()) {
+            boards.put(region, new ConcurrentSkipListSet<>(RANKING));
+        }
+        rebuild();
+    }
+
+    /**
+     * Throws the boards away and fills them again with one scan of User, from a consistent snapshot.
+     */
+    public void rebuild() {
+        rebuildLock.writeLock().lock();
+        try {
+            List<Player> scanned = new ArrayList<>();
+            connector.run(conn -> {
+                try (Statement st = Util.streamingStatement(conn)) {
+                    st.execute("START TRANSACTION WITH CONSISTENT SNAPSHOT, READ ONLY");
+                    try (ResultSet rs = st.executeQuery("SELECT username, livesInEurope, points FROM User WHERE points >= " + minPoints)) {
+                        while (rs.next()) {
+                            scanned.add(new Player(rs.getString(1), rs.getBoolean(2), rs.getInt(3)));
+                        }
+                    }
+                    st.execute("COMMIT");
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+                return "";
+            });
+            long stamp = boardsLock.writeLock();
+            try {
+                players.clear();
+                boards.values().forEach(ConcurrentSkipListSet::clear);
+                long now = seq.incrementAndGet();
+                for (Player player : scanned) {
+                    players.put(player.username(), new Entry(player, now));
+                    boards.get(player.region()).add(player);
+                }
+            } finally {
+                boardsLock.unlockWrite(stamp);
+            }
+        } finally {
+            rebuildLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Changes one user as a transaction on User and, once committed, on the boards. Returns the user after the change.
+     */
+    public Player update(String username, UnaryOperator<Player> change) {
+        rebuildLock.readLock().lock();
+        try {
+            long[] changeSeq = {0};
+            Player updated = connector.inTransaction("READ COMMITTED", conn -> {
+                Player current;
+                try (ResultSet rs = DbConnector.prepare(conn,
+                        "SELECT livesInEurope, points FROM User WHERE username=? FOR UPDATE", username).executeQuery()) {
+                    if (!rs.next()) {
+                        throw new SQLException("No user '" + username + "'");
+                    }
+                    current = new Player(username, rs.getBoolean(1), rs.getInt(2));
+                }
+                changeSeq[0] = seq.incrementAndGet();
+                Player next = change.apply(current);
+                DbConnector.prepare(conn, "UPDATE User SET livesInEurope=?, points=? WHERE username=?",
+                        next.livesInEurope(), next.points(), username).executeUpdate();
+                return next;
+            });
+            apply(updated, changeSeq[0]);
+            return updated;
+        } finally {
+            rebuildLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * relocateDorin, for anybody.
+     */
+    public Player relocate(String username, boolean livesInEurope) {
+        return update(username, p -> new Player(p.username(), livesInEurope, p.points()));
+    }
+
+    public Player addPoints(String username, int points) {
+        return update(username, p -> new Player(p.username(), p.livesInEurope(), p.points() + points));
+    }
+
+    private void apply(Player player, long changeSeq) {
+        long stamp = boardsLock.writeLock();
+        try {
+            Entry old = players.get(player.username());
+            if (old != null && old.seq() > changeSeq) {
+                return;
+            }
+            if (old != null) {
+                boards.get(old.player().region()).remove(old.player());
+            }
+            // Kept even when off the boards, so an older change can't put them back.
+            players.put(player.username(), new Entry(player, changeSeq));
+            if (player.points() >= minPoints) {
+                boards.get(player.region()).add(player);
+            }
+        } finally {
+            boardsLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * The 'k' best of 'region', best first.
+     */
+    public List<Player> top(Region region, int k) {
+        return read(() -> first(boards.get(region), k));
+    }
+
+    /**
+     * Both boards in full, as of the same moment.
+     */
+    public Map<Region, List<Player>> boards() {
+        return read(() -> {
+            Map<Region, List<Player>> ret = new EnumMap<>(Region.class);
+            for (Region region : Region.values()) {
+                ret.put(region, first(boards.get(region), Integer.MAX_VALUE));
+            }
+            return ret;
+        });
+    }
+
+    /**
+     * Optimistic first: the boards are concurrent sets, reading them while a change lands is safe, just maybe torn.
+     * If a change did land the read is repeated under the read lock.
+     */
+    private <T> T read(Supplier<T> read) {
+        long stamp = boardsLock.tryOptimisticRead();
+        if (stamp != 0) {
+            T ret = read.get();
+            if (boardsLock.validate(stamp)) {
+                return ret;
+            }
+        }
+        stamp = boardsLock.readLock();
+        try {
+            return read.get();
+        } finally {
+            boardsLock.unlockRead(stamp);
+        }
+    }
+
+    private static List<Player> first(ConcurrentSkipListSet<Player> board, int k) {
+        List<Player> ret = new ArrayList<>(Math.min(k, 64));
+        Iterator<Player> it = board.iterator();
+        while (ret.size() < k && it.hasNext()) {
+            ret.add(it.next());
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,166 @@
+package workshop_tnx_isolation;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches InnoDB lock waits while a workload runs, to actually see the row and range locks M3 and M4 talk about.
+ * * *
+ * Every 'interval' it asks the source who is waiting on whom, and keeps the last 'window' samples.
+ * The report shows the top K most contended locks (table, index, locked row or gap) and the top K longest running
+ * blockers over that window.
+ * * *
+ * The default source reads performance_schema.data_lock_waits / data_locks and information_schema.innodb_trx.
+ * Anything else that can list lock waits (e.g. a canned list, or an in-process lock manager) can be plugged in.
+ */
+public class LockContentionMonitor implements AutoCloseable {
+
+    /**
+     * One transaction waiting for a lock held by another one.
+     */
+    public record LockWait(String waitingTrx, String blockingTrx, String table, String index, String lockData,
+                           String lockMode, long waitMillis, long blockerAgeMillis, String blockingQuery) {
+        String lockName() {
+            return table + "." + (index == null ? "<table>" : index) + (lockData == null ? "" : " [" + lockData + "]")
+                    + " " + lockMode;
+        }
+    }
+
+    public interface LockWaitSource {
+        List<LockWait> sample() throws SQLException;
+    }
+
+    private record Contention(String lock, int samples, long maxWaitMillis) {
+    }
+
+    private record Blocker(String trx, long ageMillis, int waiters, String query) {
+    }
+
+    private static final String LOCK_WAITS = """
+            SELECT r.trx_id AS waiting_trx, b.trx_id AS blocking_trx,
+                   bl.OBJECT_NAME AS table_name, bl.INDEX_NAME AS index_name, bl.LOCK_DATA AS lock_data, bl.LOCK_MODE AS lock_mode,
+                   TIMESTAMPDIFF(MICROSECOND, r.trx_wait_started, NOW(6)) DIV 1000 AS wait_ms,
+                   TIMESTAMPDIFF(MICROSECOND, b.trx_started, NOW(6)) DIV 1000 AS blocker_age_ms,
+                   b.trx_query AS blocking_query
+            FROM performance_schema.data_lock_waits w
+            JOIN performance_schema.data_locks bl ON bl.ENGINE_LOCK_ID = w.BLOCKING_ENGINE_LOCK_ID
+            JOIN information_schema.innodb_trx r ON r.trx_id = w.REQUESTING_ENGINE_TRANSACTION_ID
+            JOIN information_schema.innodb_trx b ON b.trx_id = w.BLOCKING_ENGINE_TRANSACTION_ID
+            """;
+
+    private final LockWaitSource source;
+    private final int window;
+    private final int topK;
+    private final Deque<List<LockWait>> samples = new ArrayDeque<>();
+    private final ScheduledExecutorService sampler;
+    private long failedSamples;
+
+    public LockContentionMonitor(LockWaitSource source, Duration interval, int window, int topK) {
+        this.source = source;
+        this.window = window;
+        this.topK = topK;
+        this.sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lock-contention-monitor");
+            t.setDaemon(true);
+            return t;
+        });
+        sampler.scheduleWithFixedDelay(this::sampleOnce, 0, interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Samples MySql through 'connector' every 'interval', reports over the last 'window' samples.
+     */
+    public static LockContentionMonitor forMySql(DbConnector connector, Duration interval, int window, int topK) {
+        return new LockContentionMonitor(() -> queryLockWaits(connector), interval, window, topK);
+    }
+
+    public static List<LockWait> queryLockWaits(DbConnector connector) {
+        List<LockWait> ret = new ArrayList<>();
+        connector.run(conn -> {
+            try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery(LOCK_WAITS)) {
+                while (rs.next()) {
+                    ret.add(new LockWait(rs.getString("waiting_trx"), rs.getString("blocking_trx"),
+                            rs.getString("table_name"), rs.getString("index_name"), rs.getString("lock_data"),
+                            rs.getString("lock_mode"), rs.getLong("wait_ms"), rs.getLong("blocker_age_ms"),
+                            rs.getString("blocking_query")));
+                }
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+            return "";
+        });
+        return ret;
+    }
+
+    private void sampleOnce() {
+        List<LockWait> sample;
+        try {
+            sample = source.sample();
+        } catch (SQLException | RuntimeException e) {
+            synchronized (this) {
+                failedSamples++;
+            }
+            return;
+        }
+        synchronized (this) {
+            samples.addLast(sample);
+            while (samples.size() > window) {
+                samples.removeFirst();
+            }
+        }
+    }
+
+    /**
+     * Top K contended locks and longest blockers over the current window.
+     */
+    public synchronized String report() {
+        Map<String, Contention> locks = new HashMap<>();
+        Map<String, Blocker> blockers = new HashMap<>();
+        for (List<LockWait> sample : samples) {
+            for (LockWait w : sample) {
+                locks.merge(w.lockName(), new Contention(w.lockName(), 1, w.waitMillis()),
+                        (a, b) -> new Contention(a.lock(), a.samples() + 1, Math.max(a.maxWaitMillis(), b.maxWaitMillis())));
+                blockers.merge(w.blockingTrx(), new Blocker(w.blockingTrx(), w.blockerAgeMillis(), 1, w.blockingQuery()),
+                        (a, b) -> new Blocker(a.trx(), Math.max(a.ageMillis(), b.ageMillis()), a.waiters() + 1,
+                                b.query() != null ? b.query() : a.query()));
+            }
+        }
+
+        StringBuilder ret = new StringBuilder();
+        ret.append("========== lock contention over last ").append(samples.size()).append(" samples");
+        if (failedSamples > 0) {
+            ret.append(" (").append(failedSamples).append(" failed)");
+        }
+        ret.append('\n');
+        ret.append("Most contended locks (samples seen waiting, longest wait):\n");
+        locks.values().stream()
+                .sorted(Comparator.comparingInt(Contention::samples).thenComparingLong(Contention::maxWaitMillis).reversed())
+                .limit(topK)
+                .forEach(c -> ret.append("  ").append(c.lock()).append(" : ").append(c.samples())
+                        .append(" samples, ").append(c.maxWaitMillis()).append(" ms\n"));
+        ret.append("Longest blockers (age, waits sampled behind it, last statement):\n");
+        blockers.values().stream()
+                .sorted(Comparator.comparingLong(Blocker::ageMillis).reversed())
+                .limit(topK)
+                .forEach(b -> ret.append("  trx ").append(b.trx()).append(" : ").append(b.ageMillis()).append(" ms, ")
+                        .append(b.waiters()).append(" waits, ").append(b.query()).append('\n'));
+        return ret.toString();
+    }
+
+    @Override
+    public void close() {
+        sampler.shutdownNow();
+    }
+}
@@ -1,10 +1,16 @@
 package workshop_tnx_isolation;
 
 
+import java.sql.BatchUpdateException;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public class M1_WordOnAtomicity {
+    private static final String GIVE_GB = "UPDATE UserInventory SET gbCount = gbCount + ? WHERE username=?";
     private final DbConnector connector = new DbConnector();
 
     private void createSchema() {
@@ -47,9 +53,9 @@ public class M1_WordOnAtomicity {
     */
     private void runGiveawayCampaign() {
         connector.run(conn -> {
-            try (Statement st = conn.createStatement()) {
-                st.execute("UPDATE UserInventory SET gbCount = gbCount + 10 WHERE username='Margot Robbie'");
-                st.execute("UPDATE UserInventory SET gbCount = gbCount + 10 WHERE username='Julius Caesar'");
+            try {
+                DbConnector.prepare(conn, GIVE_GB, 10, "Margot Robbie").executeUpdate();
+                DbConnector.prepare(conn, GIVE_GB, 10, "Julius Caesar").executeUpdate();
 
             } catch (Exception e) {
                 System.out.println(e);
@@ -68,8 +74,8 @@ public class M1_WordOnAtomicity {
         connector.run(conn -> {
             try (Statement st = conn.createStatement()) {
                 st.execute("START TRANSACTION;");
-                st.execute("UPDATE UserInventory SET gbCount = gbCount + 10 WHERE username='Margot Robbie'");
-                st.execute("UPDATE UserInventory SET gbCount = gbCount + 10 WHERE username='Julius Caesar'");
+                DbConnector.prepare(conn, GIVE_GB, 10, "Margot Robbie").executeUpdate();
+                DbConnector.prepare(conn, GIVE_GB, 10, "Julius Caesar").executeUpdate();
                 st.execute("COMMIT");
             } catch (Exception e) {
                 System.out.println(e);
@@ -78,6 +84,112 @@ public class M1_WordOnAtomicity {
         });
     }
 
+    /**
+     * The atomic campaign in one round trip instead of four, see PipelinedTransaction.
+     * Julius' UPDATE fails, MySql skips the COMMIT, Margot's UPDATE is rolled back and the exception says which
+     * statement broke: one statement (Margot's) ran before it, so it's statement 1, SQLState 22003 (out of range).
+     */
+    private void runGiveawayCampaignPipelined() {
+        try (ConnectionPool pool = new ConnectionPool(PipelinedTransaction.config().withSize(0, 2))) {
+            DbConnector pipelined = new DbConnector(pool);
+            pipelined.run(conn -> {
+                try {
+                    new PipelinedTransaction("REPEATABLE READ")
+                            .statement(GIVE_GB, 10, "Margot Robbie")
+                            .statement(GIVE_GB, 10, "Julius Caesar")
+                            .execute(conn);
+                } catch (BatchUpdateException e) {
+                    // The message names the statement, the update counts can't when even finding it out failed.
+                    System.out.println("failed, SQLState " + e.getSQLState() + ": " + e.getMessage());
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+                return "";
+            });
+        }
+    }
+
+    /**
+     * The same campaign, but the way you'd run it with many users and many threads: every grant is a separate request
+     * and the IncrementCoalescer folds them into one transaction per flush.
+     * Julius still overflows, and since he is in the same flush as Margot, Margot doesn't get her gbs either.
+     * All or nothing, just for a whole batch of requests at once.
+     */
+    private void runGiveawayCampaignCoalesced() {
+        try (IncrementCoalescer coalescer = new IncrementCoalescer(connector, "UserInventory", "username", "gbCount", 50, 1000)) {
+            List<CompletableFuture<Void>> grants = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                grants.add(coalescer.increment("Margot Robbie", 1));
+                grants.add(coalescer.increment("Julius Caesar", 1));
+            }
+            try {
+                CompletableFuture.allOf(grants.toArray(new CompletableFuture<?>[0])).join();
+            } catch (Exception e) {
+                System.out.println(e);
+            }
+            System.out.println(coalescer.stats());
+        }
+    }
+
+    /**
+     * Margot gets her 100 gbs as 100 separate "+1" requests, all in flight at once, each one a read-modify-write.
+     * Done naively (read, add one, write) most of them would be lost updates. Done optimistically the 'version'
+     * column catches every one of those and the request simply tries again, done pessimistically the requests queue
+     * on the row lock. Either way she ends up with exactly 100 more, the stats show what each way cost.
+     */
+    private void runGiveawayCampaignReadModifyWrite(boolean optimistic) {
+        connector.run(conn -> {
+            try {
+                OptimisticUpdater.addVersionColumn(conn, "UserInventory");
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+            return "";
+        });
+        OptimisticUpdater updater = new OptimisticUpdater(connector, "UserInventory", "username", "gbCount", 100);
+        List<CompletableFuture<Long>> grants = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            grants.add(connector.runAsync(conn -> optimistic
+                    ? updater.update(conn, "Margot Robbie", gb -> gb + 1)
+                    : updater.updateForUpdate(conn, "Margot Robbie", gb -> gb + 1)));
+        }
+        CompletableFuture.allOf(grants.toArray(new CompletableFuture<?>[0])).join();
+        System.out.println((optimistic ? "optimistic: " : "pessimistic: ") + updater.stats());
+    }
+
+    /**
+     * The campaign goes viral: 100 "+1" grants each for Margot and Julius, all at once, on 8 shards per user instead
+     * of one row, so the grants don't all queue on the same row lock. See ShardedCounter.
+     * The overflow check survives the sharding: Julius gets his last 7 gbs and every grant after that fails.
+     */
+    private void runGiveawayCampaignSharded() {
+        try (ShardedCounter gbs = new ShardedCounter(connector, "UserInventory", "username", "gbCount", 8,
+                Integer.MAX_VALUE, null)) {
+            connector.run(conn -> {
+                try {
+                    gbs.createTable(conn);
+                    gbs.importFrom(conn, "UserInventory");
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+                return "";
+            });
+            List<CompletableFuture<Boolean>> grants = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                for (String user : List.of("Margot Robbie", "Julius Caesar")) {
+                    grants.add(connector.runAsync(conn -> {
+                        gbs.increment(conn, user, 1);
+                        return true;
+                    }).exceptionally(e -> false));
+                }
+            }
+            long failed = grants.stream().filter(grant -> !grant.join()).count();
+            System.out.println("failed grants: " + failed + ", " + gbs.stats());
+            System.out.println("Margot Robbie | " + gbs.total("Margot Robbie"));
+            System.out.println("Julius Caesar | " + gbs.total("Julius Caesar"));
+        }
+    }
+
     private static void runNonAtomicCampaign(){
         System.out.println("Running camping");
         M1_WordOnAtomicity sc = new M1_WordOnAtomicity();
@@ -98,8 +210,49 @@ public class M1_WordOnAtomicity {
 
 
 
+    private static void runPipelinedCampaign(){
+        System.out.println("Running pipelined camping");
+        M1_WordOnAtomicity sc = new M1_WordOnAtomicity();
+        sc.createSchema();
+        sc.printTable();
+        sc.runGiveawayCampaignPipelined();
+        sc.printTable();
+    }
+
+    private static void runCoalescedCampaign(){
+        System.out.println("Running coalesced camping");
+        M1_WordOnAtomicity sc = new M1_WordOnAtomicity();
+        sc.createSchema();
+        sc.printTable();
+        sc.runGiveawayCampaignCoalesced();
+        sc.printTable();
+    }
+
+    private static void runReadModifyWriteCampaigns(){
+        System.out.println("Running read-modify-write camping");
+        M1_WordOnAtomicity sc = new M1_WordOnAtomicity();
+        sc.createSchema();
+        sc.printTable();
+        sc.runGiveawayCampaignReadModifyWrite(true);
+        sc.printTable();
+        sc.runGiveawayCampaignReadModifyWrite(false);
+        sc.printTable();
+    }
+
+    private static void runShardedCampaign(){
+        System.out.println("Running sharded camping");
+        M1_WordOnAtomicity sc = new M1_WordOnAtomicity();
+        sc.createSchema();
+        sc.printTable();
+        sc.runGiveawayCampaignSharded();
+    }
+
     public static void main(String[] args){
         runNonAtomicCampaign();
         runAtomicCampaign();
+        runPipelinedCampaign();
+        runCoalescedCampaign();
+        runReadModifyWriteCampaigns();
+        runShardedCampaign();
     }
 }
@@ -2,9 +2,8 @@ package workshop_tnx_isolation;
 
 import java.sql.ResultSet;
 import java.sql.Statement;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Can see uncommitted data from other transactions.
@@ -30,17 +29,17 @@ public class M2_ReadUncommitted {
         });
     }
 
-    private void giveDorinMoreMoney(CountDownLatch latch) {
-        connector.run(conn -> {
+    private CompletableFuture<String> giveDorinMoreMoney(InterleavingScheduler scheduler) {
+        return connector.runAsync(conn -> {
             try (Statement st = conn.createStatement()) {
+                scheduler.step("give:update");
                 st.execute("START TRANSACTION;");
                 st.execute("UPDATE MonthlyPay SET paycheck = paycheck + 100 WHERE username='Dorin'");
-                st.execute("SELECT SLEEP(8);");
+                scheduler.step("give:rollback");
                 st.execute("ROLLBACK;"); // LOL
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+            } finally {
+                scheduler.done();
             }
-            latch.countDown();
             return "";
         });
     }
@@ -58,31 +57,33 @@ public class M2_ReadUncommitted {
      * example as 'taxTheRich' transaction would have had to wait for 'giveDorinMoreMoney' transaction to finish
      * before it can update the row, and at that time 'giveDorinMoreMoney' transaction already rolled back.
      */
-    private void taxTheRich(CountDownLatch latch, String isolationLevel) {
-        connector.run(conn -> {
+    private CompletableFuture<String> taxTheRich(InterleavingScheduler scheduler, String isolationLevel) {
+        return connector.runAsync(conn -> {
             try (Statement st = conn.createStatement()) {
+                scheduler.step("tax:insert");
                 st.execute("SET TRANSACTION ISOLATION LEVEL " + isolationLevel);
                 st.execute("START TRANSACTION");
-                st.execute("SELECT SLEEP(4)");
                 st.execute("INSERT INTO TaxReport SELECT username, paycheck>=100 FROM MonthlyPay");
+                scheduler.step("tax:commit");
                 st.execute("COMMIT");
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+            } finally {
+                scheduler.done();
             }
-            latch.countDown();
             return "";
         });
     }
 
     private void printTables() {
         connector.run(conn -> {
-            try (Statement st = conn.createStatement()) {
+            try (Statement st = Util.streamingStatement(conn)) {
                 ResultSet rs = st.executeQuery("SELECT * FROM MonthlyPay");
-                System.out.println(Util.resultSetToString("MonthlyPay", rs, "username", "paycheck"));
+                Util.writeResultSet(System.out, "MonthlyPay", rs, "username", "paycheck");
+                System.out.println();
                 rs.close();
 
                 ResultSet rs2 = st.executeQuery("SELECT * FROM TaxReport");
-                System.out.println(Util.resultSetToString("TaxReport", rs2, "username", "isRich"));
+                Util.writeResultSet(System.out, "TaxReport", rs2, "username", "isRich");
+                System.out.println();
                 rs2.close();
 
             } catch (Exception e) {
@@ -120,23 +121,24 @@ public class M2_ReadUncommitted {
      * <p>
      * The exact way of how this is implemented depends on the database system.
      */
-    public static void main(String[] args) throws InterruptedException {
-        ExecutorService exec = Executors.newFixedThreadPool(2);
-        CountDownLatch latch = new CountDownLatch(2);
+    public static void main(String[] args) {
+        // Steps 1) 2) 3) from the comment above, always in that order.
+        InterleavingScheduler scheduler = InterleavingScheduler.of(Duration.ofMillis(500),
+                "give:update", "tax:insert", "give:rollback", "tax:commit");
 
         M2_ReadUncommitted sc = new M2_ReadUncommitted();
         sc.createSchema();
         sc.printTables();
 
-        exec.execute(() -> sc.giveDorinMoreMoney(latch));
-        exec.execute(() -> sc.taxTheRich(latch, "READ UNCOMMITTED"));
-
-        // Running the same transaction in a higher isolation mode solves our problem.
-        //exec.execute(() -> sc.taxTheRich(latch, "READ COMMITTED"));
+        CompletableFuture.allOf(
+                sc.giveDorinMoreMoney(scheduler),
+                sc.taxTheRich(scheduler, "READ UNCOMMITTED")
+                // Running the same transaction in a higher isolation mode solves our problem.
+                // sc.taxTheRich(scheduler, "READ COMMITTED")
+        ).join();
 
-        latch.await();
+        System.out.println("Steps ran as " + scheduler.trace());
         sc.printTables();
-        exec.shutdown();
     }
 
 
@@ -3,14 +3,16 @@ package workshop_tnx_isolation;
 
 import java.sql.ResultSet;
 import java.sql.Statement;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Eager lock releasing. No dirty reads but it's not repeatable.
+ * * *
+ * '--incremental' keeps the leaderboards in memory instead, see LeaderboardView: one scan at startup, then only the
+ * moves, and both boards read from the same moment.
  */
 public class M3_ReadCommitted {
     private final DbConnector connector = new DbConnector();
@@ -35,17 +37,16 @@ public class M3_ReadCommitted {
         });
     }
 
-    private void relocateDorin(CountDownLatch latch) {
-        connector.run(conn -> {
+    private CompletableFuture<String> relocateDorin(InterleavingScheduler scheduler) {
+        return connector.runAsync(conn -> {
             try (Statement st = conn.createStatement()) {
+                scheduler.step("relocate");
                 st.execute("START TRANSACTION");
-                st.execute("SELECT SLEEP(3)");
                 st.execute("UPDATE User SET livesInEurope = false WHERE username='Dorin'");
                 st.execute("COMMIT");
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+            } finally {
+                scheduler.done();
             }
-            latch.countDown();
             return "";
         });
     }
@@ -53,9 +54,10 @@ public class M3_ReadCommitted {
     /**
      * Generate 2 leaderboards (EU or NON_EU) depending on the user `livesInEurope` or not.
      */
-    private void generateLeaderboards(CountDownLatch latch, String isolationLevel) {
-        connector.run(conn -> {
+    private CompletableFuture<String> generateLeaderboards(InterleavingScheduler scheduler, String isolationLevel) {
+        return connector.runAsync(conn -> {
             try (Statement st = conn.createStatement()) {
+                scheduler.step("leaderboards:eu");
                 st.execute("SET TRANSACTION ISOLATION LEVEL " + isolationLevel);
                 st.execute("START TRANSACTION");
 
@@ -65,8 +67,8 @@ public class M3_ReadCommitted {
                 while (rs.next()) {
                     europeTopScorers.add(rs.getString("username"));
                 }
-                st.execute("INSERT INTO Leaderboards VALUES('EU','" + europeTopScorers + "')");
-                st.execute("SELECT SLEEP(6)");
+                DbConnector.prepare(conn, "INSERT INTO Leaderboards VALUES(?, ?)", "EU", europeTopScorers.toString()).executeUpdate();
+                scheduler.step("leaderboards:non_eu");
 
                 // Create the leader ranking for non-european countries
                 List<String> worldTopScorers = new ArrayList<>();
@@ -74,26 +76,27 @@ public class M3_ReadCommitted {
                 while (rs2.next()) {
                     worldTopScorers.add(rs2.getString("username"));
                 }
-                st.execute("INSERT INTO Leaderboards VALUES('NON_EU','" + worldTopScorers + "')");
+                DbConnector.prepare(conn, "INSERT INTO Leaderboards VALUES(?, ?)", "NON_EU", worldTopScorers.toString()).executeUpdate();
 
                 st.execute("COMMIT;");
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+            } finally {
+                scheduler.done();
             }
-            latch.countDown();
             return "";
         });
     }
 
     private void printTables() {
         connector.run(conn -> {
-            try (Statement st = conn.createStatement()) {
+            try (Statement st = Util.streamingStatement(conn)) {
                 ResultSet rs = st.executeQuery("SELECT * FROM Leaderboards");
-                System.out.println(Util.resultSetToString("Leaderboards", rs, "leaderboardName", "topScorers"));
+                Util.writeResultSet(System.out, "Leaderboards", rs, "leaderboardName", "topScorers");
+                System.out.println();
                 rs.close();
 
                 ResultSet rs2 = st.executeQuery("SELECT * FROM User;");
-                System.out.println(Util.resultSetToString("User", rs2, "username", "livesInEurope", "points"));
+                Util.writeResultSet(System.out, "User", rs2, "username", "livesInEurope", "points");
+                System.out.println();
                 rs2.close();
 
             } catch (Exception e) {
@@ -131,28 +134,75 @@ public class M3_ReadCommitted {
      */
 
 
-    public static void main(String[] args) throws InterruptedException {
-        M3_ReadCommitted sc = new M3_ReadCommitted();
-        sc.createSchema();
-        sc.printTables();
+    /**
+     * Runs both transactions once in the given step order and returns what ended up in Leaderboards.
+     */
+    private String runSchedule(List<String> schedule, String isolationLevel) {
+        InterleavingScheduler scheduler = new InterleavingScheduler(schedule, Duration.ofMillis(500));
+        CompletableFuture.allOf(relocateDorin(scheduler), generateLeaderboards(scheduler, isolationLevel)).join();
+        return connector.query("SELECT leaderboardName, topScorers FROM Leaderboards ORDER BY leaderboardName",
+                rs -> rs.getString(1) + "=" + rs.getString(2)).toString();
+    }
 
-        ExecutorService exec = Executors.newFixedThreadPool(2);
-        CountDownLatch latch = new CountDownLatch(2);
+    /**
+     * Every order the steps of the two transactions can run in, and the leaderboards each one produces.
+     * Under READ COMMITTED one of them puts Dorin on both leaderboards, under REPEATABLE READ none do.
+     */
+    private void exploreSchedules(String isolationLevel) {
+        List<List<String>> schedules = InterleavingScheduler.interleavings(List.of(
+                List.of("relocate"), List.of("leaderboards:eu", "leaderboards:non_eu")));
+        for (List<String> schedule : schedules) {
+            createSchema();
+            System.out.println(isolationLevel + " " + schedule + " -> " + runSchedule(schedule, isolationLevel));
+        }
+    }
 
-        exec.execute(() -> sc.relocateDorin(latch));
-        exec.execute(() -> sc.generateLeaderboards(latch, "READ COMMITTED"));
+    private void runIncrementalLeaderboards() {
+        LeaderboardView view = new LeaderboardView(connector, 100);
+        System.out.println("Built: " + view.boards());
+        view.relocate("Dorin", false);
+        System.out.println("Dorin relocated: " + view.boards());
+        view.addPoints("Porin", 95);
+        System.out.println("Porin scored: " + view.boards());
+        System.out.println("Top NON_EU: " + view.top(LeaderboardView.Region.NON_EU, 1));
+    }
 
-        // Running the same transaction with a higher isolation level (REPEATABLE READ) solves our problem.
-        // Dorin goes to the EU leaderboard because at the exact point-in-time where `generateLeaderboards` started
-        // `relocateDorin` did not commit yet; So `generateLeaderboards` sees an older snapshot of the data where dorin
-        // is still in europe. Which is actually correct behavior in most cases. This is why REPEATABLE READ is the default
-        // isolation level in MySql.
+    public static void main(String[] args) {
+        M3_ReadCommitted sc = new M3_ReadCommitted();
+        if (args.length > 0 && args[0].equals("--explore")) {
+            sc.exploreSchedules("READ COMMITTED");
+            sc.exploreSchedules("REPEATABLE READ");
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--incremental")) {
+            sc.createSchema();
+            sc.runIncrementalLeaderboards();
+            return;
+        }
 
-        //exec.execute(() -> sc.generateLeaderboards(latch,"REPEATABLE READ"));
+        sc.createSchema();
+        sc.printTables();
 
-        latch.await();
+        LockContentionMonitor monitor = LockContentionMonitor.forMySql(sc.connector, Duration.ofMillis(100), 200, 5);
+        // Exactly the order described above, no sleeps involved.
+        InterleavingScheduler scheduler = InterleavingScheduler.of(Duration.ofMillis(500),
+                "leaderboards:eu", "relocate", "leaderboards:non_eu");
+
+        CompletableFuture.allOf(
+                sc.relocateDorin(scheduler),
+                sc.generateLeaderboards(scheduler, "READ COMMITTED")
+                // Running the same transaction with a higher isolation level (REPEATABLE READ) solves our problem.
+                // Dorin goes to the EU leaderboard because at the exact point-in-time where `generateLeaderboards` started
+                // `relocateDorin` did not commit yet; So `generateLeaderboards` sees an older snapshot of the data where dorin
+                // is still in europe. Which is actually correct behavior in most cases. This is why REPEATABLE READ is the default
+                // isolation level in MySql.
+                // sc.generateLeaderboards(scheduler, "REPEATABLE READ")
+        ).join();
+
+        System.out.println("Steps ran as " + scheduler.trace());
         sc.printTables();
-        exec.shutdown();
+        System.out.print(monitor.report());
+        monitor.close();
     }
 
     /**
@@ -165,11 +215,12 @@ public class M3_ReadCommitted {
      * Now all your UPDATE statements originating from other transactions are blocked until the backup transaction is finished.
      * From what I understand this is one of the reasons legacy systems have "Nightly server maintenance downtimes".
      * Their legacy DBMS can't take backups concurrently with user traffic.
+     * (TwoPhaseLockingBenchmark puts numbers on this, with engine.RowLockManager against the MVCC stand-in.)
      * * *
      * Unlike the systems of old DBMS from the Oracle, MySql, PostgreSql family or newer do not actually take locks.
      * They use what is called "Snapshot isolation" implemented using 'Multi Versioning Concurrency Control' scheme aka MVCC.
      * By using MVCC multiple timestamped versions of each row are preserved thus allowing long-running operations (for example analytics or backups)
-     * to be executed in parallel with user traffic.
+     * to be executed in parallel with user traffic. SnapshotExporter is such a backup, next to a probe timing the writers.
      * The use of MVCC has some fun implications for scenarios involving data mutation like clobbered updates or write skew,
      * but this is outside of scope for this workshop. The hole goes deep.
      */
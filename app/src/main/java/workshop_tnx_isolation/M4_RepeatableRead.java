@@ -3,14 +3,15 @@ package workshop_tnx_isolation;
 
 import java.sql.ResultSet;
 import java.sql.Statement;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
 
 public class M4_RepeatableRead {
     private final DbConnector connector = new DbConnector();
+    // What the checkout page reads. Writes below go through it, so it drops Dorin's cart once they commit.
+    private final CartCache carts = new CartCache(connector, 1024);
 
     private void createSchema() {
         connector.run(conn -> {
@@ -28,12 +29,16 @@ public class M4_RepeatableRead {
         });
     }
 
-    private void taxPayAndShip(CountDownLatch latch, String isolationLevel) {
-        connector.run(conn -> {
+    /**
+     * Runs through 'inTransaction', so when SERIALIZABLE makes MySql pick this transaction as a deadlock victim
+     * it simply runs again instead of blowing up. Watch it print twice.
+     * The retry doesn't wait for the scheduler, its steps already had their turn.
+     * It reads the cart from the database, not from 'carts': the cache can't see this transaction's own updates.
+     */
+    private CompletableFuture<String> taxPayAndShip(InterleavingScheduler scheduler, String isolationLevel) {
+        return carts.inTransactionAsync("Dorin", isolationLevel, conn -> {
             try (Statement st = conn.createStatement()) {
-                st.execute("SET TRANSACTION ISOLATION LEVEL " + isolationLevel);
-                st.execute("START TRANSACTION;");
-
+                scheduler.step("ship:list");
                 // Get items to ship
                 List<String> items = new ArrayList<>();
                 ResultSet rs = st.executeQuery("SELECT item, price FROM PurchaseCart WHERE buyer='Dorin'");
@@ -41,7 +46,7 @@ public class M4_RepeatableRead {
                     items.add(rs.getString("item") + "(" + rs.getInt("price") + ")");
                 }
                 rs.close();
-                st.execute("SELECT SLEEP(3)");
+                scheduler.step("ship:tax");
 
                 // Apply a flat tax on 1 eur per item
                 // https://stackoverflow.com/questions/5444915/how-to-produce-phantom-read-in-repeatable-read-mysql
@@ -61,25 +66,22 @@ public class M4_RepeatableRead {
                 ResultSet rs3 = st.executeQuery("SELECT * FROM PurchaseCart;");
                 System.out.println(Util.resultSetToString("PurchaseCart", rs3, "item", "buyer", "price", "taxApplied"));
                 rs3.close();
-                st.execute("COMMIT");
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+            } finally {
+                // Here, on the thread that ran the steps: done() ends the calling thread's step.
+                scheduler.done();
             }
-            latch.countDown();
             return "";
         });
     }
 
-    private void addToCart(CountDownLatch latch) {
-        connector.run(conn -> {
+    private CompletableFuture<String> addToCart(InterleavingScheduler scheduler) {
+        return carts.inTransactionAsync("Dorin", "REPEATABLE READ", conn -> {
             try (Statement st = conn.createStatement()) {
-                st.execute("START TRANSACTION;");
+                scheduler.step("cart:add");
                 st.execute("INSERT INTO PurchaseCart VALUES ('RaspberryPI', 'Dorin', 100, false)");
-                st.execute("COMMIT;");
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+            } finally {
+                scheduler.done();
             }
-            latch.countDown();
             return "";
         });
     }
@@ -115,17 +117,23 @@ public class M4_RepeatableRead {
      * For every new insertion the system will check if the new record matching any of these active clauses.
      * If yes, the row insertion is throttled, it must wait for the active SERIALIZABLE transaction to end.
      * If not it can go ahead as there is no risk the new row will pop up in any running serializable transactions.
+     * engine.PredicateLockManager is a small working version of this.
      */
 
-    public static void main(String[] args) throws InterruptedException {
+    public static void main(String[] args) {
         M4_RepeatableRead sc = new M4_RepeatableRead();
         sc.createSchema();
+        // Twice: loaded, then cached.
+        System.out.println("Checkout page: " + sc.carts.get("Dorin"));
+        System.out.println("Checkout page: " + sc.carts.get("Dorin"));
 
-        ExecutorService exec = Executors.newFixedThreadPool(2);
-        CountDownLatch latch = new CountDownLatch(2);
+        LockContentionMonitor monitor = LockContentionMonitor.forMySql(sc.connector, Duration.ofMillis(100), 200, 5);
+        // Under SERIALIZABLE `cart:add` gets stuck on a gap lock, after 500ms the scheduler lets `ship:tax` go ahead.
+        InterleavingScheduler scheduler = InterleavingScheduler.of(Duration.ofMillis(500),
+                "ship:list", "cart:add", "ship:tax");
 
-        exec.execute(() -> sc.addToCart(latch));
-        exec.execute(() -> sc.taxPayAndShip(latch, "REPEATABLE READ"));
+        CompletableFuture<String> cart = sc.addToCart(scheduler);
+        CompletableFuture<String> ship = sc.taxPayAndShip(scheduler, "REPEATABLE READ");
 
         // SERIALIZABLE is the strongest isolation level but also the most lock intensive and bad for performance.
         // Serilizability is defined as such : "equivalence of outcome to a serial/sequential schedule".
@@ -134,13 +142,21 @@ public class M4_RepeatableRead {
         // b) if I run `addToCart` and `taxPayAndShip` sequentially that also yields consistent state.
         // c) if I run both `taxPayAndShip` and `addToCart` concurrently and I get the same outcome as A or B that's good,
         // there is no concurrency error.
+        // IsolationAdvisor checks exactly that, for every interleaving at every level, and picks the weakest level that passes.
 
         // If we run the same code in serializable isolation level we get B ordering of mutations which is a valid outcome.
-        // Playing with the sleep delays can force the example to give us outcome A, which would also be valid.
-
-        // exec.execute(() -> sc.taxPayAndShip(latch, "SERIALIZABLE"));
-
-        latch.await();
-        exec.shutdown();
+        // Scheduling "cart:add" after "ship:tax" forces outcome A, which would also be valid.
+
+        // CompletableFuture<String> ship = sc.taxPayAndShip(scheduler, "SERIALIZABLE");
+
+        CompletableFuture.allOf(cart, ship).join();
+        System.out.println("Steps ran as " + scheduler.trace());
+        // Reloaded, both transactions invalidated it on commit.
+        System.out.println("Checkout page: " + sc.carts.get("Dorin"));
+        System.out.println("Cart cache: " + sc.carts.stats());
+        System.out.print(sc.connector.retryPolicy().report());
+        // Under SERIALIZABLE this shows the gap lock on PurchaseCart that keeps `addToCart` waiting.
+        System.out.print(monitor.report());
+        monitor.close();
     }
 }
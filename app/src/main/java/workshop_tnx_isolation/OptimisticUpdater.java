@@ -0,0 +1,198 @@
+package workshop_tnx_isolation;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Read-modify-write on one counter column of one row, e.g. 'gbCount' in UserInventory, two ways.
+ * * *
+ * * update          : optimistic. Reads the value and the row's 'version' without taking any lock, computes the new
+ * value, then writes it with "UPDATE ... SET version = version + 1 WHERE key=? AND version=?". Zero affected rows means
+ * somebody else wrote the row in between (our update would have been a lost update), so it reads again and retries.
+ * No lock is held while the new value is computed, a conflict costs one wasted round trip.
+ * * updateForUpdate : pessimistic. "SELECT ... FOR UPDATE" in a transaction, the row stays locked until COMMIT and
+ * every other writer queues behind it. Never retries because of another writer, only when MySql aborts it.
+ * * *
+ * Both bump 'version', so the two can be mixed on the same table.
+ * Optimistic wins when conflicts are rare (read-mostly rows, writes spread over many rows), it loses badly on a hot
+ * row where most attempts conflict. 'stats' gives the conflict rate, OptimisticConcurrencyBenchmark the crossover.
+ */
+public class OptimisticUpdater {
+    public static final String VERSION_COLUMN = "version";
+
+    public record Stats(long updates, long conflicts, long givenUp, long lockWaitMillis) {
+        /**
+         * Share of optimistic writes that found the row changed under them.
+         */
+        public double conflictRate() {
+            long attempts = updates + conflicts;
+            return attempts == 0 ? 0 : (double) conflicts / attempts;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("updates=%d conflicts=%d givenUp=%d conflictRate=%.3f lockWaitMillis=%d",
+                    updates, conflicts, givenUp, conflictRate(), lockWaitMillis);
+        }
+    }
+
+    private final DbConnector connector;
+    private final String table;
+    private final String select;
+    private final String selectForUpdate;
+    private final String compareAndSet;
+    private final String write;
+    private final int maxAttempts;
+
+    private final LongAdder updates = new LongAdder();
+    private final LongAdder conflicts = new LongAdder();
+    private final LongAdder givenUp = new LongAdder();
+    private final LongAdder lockWaitNanos = new LongAdder();
+
+    /**
+     * 'table' needs a 'version' column, see 'addVersionColumn'.
+     */
+    public OptimisticUpdater(DbConnector connector, String table, String keyColumn, String valueColumn, int maxAttempts) {
+        this.connector = connector;
+        this.table = table;
+        this.select = "SELECT " + valueColumn + ", " + VERSION_COLUMN + " FROM " + table + " WHERE " + keyColumn + "=?";
+        this.selectForUpdate = "SELECT " + valueColumn + " FROM " + table + " WHERE " + keyColumn + "=? FOR UPDATE";
+        this.compareAndSet = "UPDATE " + table + " SET " + valueColumn + "=?, " + VERSION_COLUMN + "=" + VERSION_COLUMN + "+1"
+                + " WHERE " + keyColumn + "=? AND " + VERSION_COLUMN + "=?";
+        this.write = "UPDATE " + table + " SET " + valueColumn + "=?, " + VERSION_COLUMN + "=" + VERSION_COLUMN + "+1"
+                + " WHERE " + keyColumn + "=?";
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Adds "version BIGINT NOT NULL DEFAULT 0" to 'table' unless it already has it. Existing rows start at version 0.
+     */
+    public static void addVersionColumn(Connection conn, String table) throws SQLException {
+        try (ResultSet rs = DbConnector.prepare(conn, "SELECT COUNT(*) FROM information_schema.COLUMNS"
+                + " WHERE TABLE_SCHEMA=DATABASE() AND TABLE_NAME=? AND COLUMN_NAME=?", table, VERSION_COLUMN).executeQuery()) {
+            rs.next();
+            if (rs.getInt(1) > 0) {
+                return;
+            }
+        }
+        try (Statement st = conn.createStatement()) {
+            st.execute("ALTER TABLE " + table + " ADD COLUMN " + VERSION_COLUMN + " BIGINT NOT NULL DEFAULT 0");
+        }
+    }
+
+    /**
+     * Optimistic read-modify-write of the row 'key' on its own connection. Returns the value written.
+     */
+    public long update(String key, LongUnaryOperator change) {
+        long[] ret = {0};
+        connector.run(conn -> {
+            try {
+                ret[0] = update(conn, key, change);
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+            return "";
+        });
+        return ret[0];
+    }
+
+    /**
+     * Optimistic read-modify-write on 'conn', which must be in autocommit mode: every statement is its own transaction.
+     * 'change' may run more than once, once per attempt.
+     *
+     * @throws RuntimeException when the row kept changing under us for 'maxAttempts' attempts
+     */
+    public long update(Connection conn, String key, LongUnaryOperator change) throws SQLException {
+        for (int attempt = 1; ; attempt++) {
+            long value;
+            long version;
+            try (ResultSet rs = DbConnector.prepare(conn, select, key).executeQuery()) {
+                if (!rs.next()) {
+                    throw new SQLException("No row " + key + " in " + table);
+                }
+                value = rs.getLong(1);
+                version = rs.getLong(2);
+            }
+            long next = change.applyAsLong(value);
+            if (DbConnector.prepare(conn, compareAndSet, next, key, version).executeUpdate() == 1) {
+                updates.increment();
+                return next;
+            }
+            conflicts.increment();
+            if (attempt >= maxAttempts) {
+                givenUp.increment();
+                throw new RuntimeException("Gave up updating " + key + " in " + table + " after " + attempt
+                        + " attempts, the row kept changing");
+            }
+            backoff(attempt);
+        }
+    }
+
+    /**
+     * Pessimistic read-modify-write of the row 'key' on its own connection. Returns the value written.
+     */
+    public long updateForUpdate(String key, LongUnaryOperator change) {
+        long[] ret = {0};
+        connector.run(conn -> {
+            try {
+                ret[0] = updateForUpdate(conn, key, change);
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+            return "";
+        });
+        return ret[0];
+    }
+
+    /**
+     * Pessimistic read-modify-write on 'conn': locks the row with SELECT ... FOR UPDATE, writes, commits.
+     * Deadlocks and lock wait timeouts are retried up to 'maxAttempts' times.
+     */
+    public long updateForUpdate(Connection conn, String key, LongUnaryOperator change) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    st.execute("START TRANSACTION");
+                    long start = System.nanoTime();
+                    long value;
+                    try (ResultSet rs = DbConnector.prepare(conn, selectForUpdate, key).executeQuery()) {
+                        lockWaitNanos.add(System.nanoTime() - start);
+                        if (!rs.next()) {
+                            throw new SQLException("No row " + key + " in " + table);
+                        }
+                        value = rs.getLong(1);
+                    }
+                    long next = change.applyAsLong(value);
+                    DbConnector.prepare(conn, write, next, key).executeUpdate();
+                    st.execute("COMMIT");
+                    updates.increment();
+                    return next;
+                } catch (SQLException e) {
+                    st.execute("ROLLBACK");
+                    if (!RetryPolicy.isRetryable(e) || attempt >= maxAttempts) {
+                        givenUp.increment();
+                        throw e;
+                    }
+                }
+                backoff(attempt);
+            }
+        }
+    }
+
+    public Stats stats() {
+        return new Stats(updates.sum(), conflicts.sum(), givenUp.sum(), lockWaitNanos.sum() / 1_000_000);
+    }
+
+    private void backoff(int attempt) {
+        try {
+            connector.retryPolicy().backoff(attempt);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package workshop_tnx_isolation;
+
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A whole transaction sent to MySql in ONE round trip.
+ * * *
+ * 'runGiveawayCampaignAtomically' in M1 talks to the server four times: START TRANSACTION, UPDATE, UPDATE, COMMIT.
+ * Each of those waits for the answer to the previous one, on a link with 20ms round trips that's 80ms for two updates
+ * the server does in microseconds. Here the statements are glued into one multi statement packet
+ * "SET TRANSACTION ISOLATION LEVEL ..;START TRANSACTION;UPDATE ..;UPDATE ..;COMMIT" and the results are read back
+ * one after the other from the same response.
+ * * *
+ * Only works for transactions that are a fixed script: no statement may depend on what an earlier one returned, and
+ * there's no "if" in between. The giveaway qualifies, M4's 'taxPayAndShip' (read the cart, decide, write) doesn't.
+ * * *
+ * MySql stops at the first statement that fails and skips the rest, COMMIT included. The transaction is then still
+ * open, so it's rolled back (the only second round trip, and only on failure) and 'execute' throws a
+ * BatchUpdateException with one update count (SUCCESS_NO_INFO) per statement that ran before the failing one, so the
+ * failing statement is number updateCounts.length (0 based), and its SQLState / error code are MySql's.
+ * * *
+ * Needs a connection with allowMultiQueries=true, see 'config', and client side prepared statements (the driver's
+ * default): the server can't prepare several statements as one. Parameters are still bound and escaped by the driver.
+ */
+public class PipelinedTransaction {
+
+    /**
+     * What one statement of the script returned: the affected row count, or the rows of a SELECT.
+     */
+    public record StatementResult(String sql, int updateCount, List<Object[]> rows) {
+    }
+
+    private static final String MARKER = "@pipelined_statement";
+    // failure(): we could not even find out which statement failed.
+    private static final int UNKNOWN = Integer.MIN_VALUE;
+
+    private final String isolationLevel;
+    private final List<String> statements = new ArrayList<>();
+    private final List<Object> params = new ArrayList<>();
+
+    public PipelinedTransaction(String isolationLevel) {
+        this.isolationLevel = isolationLevel;
+    }
+
+    /**
+     * The default database with multi statement packets switched on. Give it its own pool, like BulkLoader does.
+     */
+    public static ConnectionPool.Config config() {
+        return DbConnector.defaultConfig().withUrlParameters("allowMultiQueries=true");
+    }
+
+    /**
+     * Appends one statement, UPDATE/INSERT/DELETE or SELECT, with its '?' parameters.
+     */
+    public PipelinedTransaction statement(String sql, Object... params) {
+        if (sql.contains(";")) {
+            throw new IllegalArgumentException("One statement at a time, no ';': " + sql);
+        }
+        statements.add(sql);
+        this.params.addAll(Arrays.asList(params));
+        return this;
+    }
+
+    /**
+     * Runs the script as one transaction in one round trip. 'conn' must be in autocommit mode, START TRANSACTION
+     * would silently commit whatever transaction it's in.
+     *
+     * @return one result per statement, in script order
+     * @throws BatchUpdateException when a statement fails, after rolling back the statements before it
+     */
+    public List<StatementResult> execute(Connection conn) throws SQLException {
+        // The driver reads the whole response inside 'execute' and throws at the first error, before any result can
+        // be looked at. So before each statement the script notes its number in a session variable, which is not
+        // transactional: after the failure and the ROLLBACK it still names the statement that broke.
+        StringBuilder script = new StringBuilder("SET " + MARKER + "=-1;SET TRANSACTION ISOLATION LEVEL ")
+                .append(isolationLevel).append(";START TRANSACTION");
+        for (int i = 0; i < statements.size(); i++) {
+            script.append(";SET ").append(MARKER).append('=').append(i).append(';').append(statements.get(i));
+        }
+        script.append(";SET ").append(MARKER).append('=').append(statements.size()).append(";COMMIT");
+        List<StatementResult> results = new ArrayList<>();
+        try {
+            PreparedStatement ps = DbConnector.prepare(conn, script.toString(), params.toArray());
+            boolean isResultSet = ps.execute();
+            while (true) {
+                List<Object[]> rows = null;
+                int updateCount = -1;
+                if (isResultSet) {
+                    rows = new ArrayList<>();
+                    try (ResultSet rs = ps.getResultSet()) {
+                        int columns = rs.getMetaData().getColumnCount();
+                        while (rs.next()) {
+                            Object[] row = new Object[columns];
+                            for (int c = 0; c < columns; c++) {
+                                row[c] = rs.getObject(c + 1);
+                            }
+                            rows.add(row);
+                        }
+                    }
+                } else {
+                    updateCount = ps.getUpdateCount();
+                    if (updateCount == -1) {
+                        break;
+                    }
+                }
+                results.add(new StatementResult(null, updateCount, rows));
+                isResultSet = ps.getMoreResults();
+            }
+        } catch (SQLException e) {
+            int failed;
+            try (Statement st = conn.createStatement()) {
+                st.execute("ROLLBACK");
+                try (ResultSet rs = st.executeQuery("SELECT " + MARKER)) {
+                    rs.next();
+                    failed = rs.getInt(1);
+                    // NULL: not even the first SET ran.
+                    failed = rs.wasNull() ? -1 : failed;
+                }
+            } catch (SQLException followUp) {
+                // Typically the connection itself is gone. Still report the failure that got us here.
+                e.addSuppressed(followUp);
+                failed = UNKNOWN;
+            }
+            throw failure(e, failed);
+        }
+        // Marker, SET TRANSACTION, START TRANSACTION, then a marker before every statement.
+        List<StatementResult> ret = new ArrayList<>(statements.size());
+        for (int i = 0; i < statements.size(); i++) {
+            StatementResult result = results.get(4 + 2 * i);
+            ret.add(new StatementResult(statements.get(i), result.updateCount(), result.rows()));
+        }
+        return ret;
+    }
+
+    /**
+     * Like 'execute', on a connection from 'connector', run again when MySql aborts it (deadlock, lock wait timeout)
+     * as long as the connector's RetryPolicy allows. Rerunning is safe, a failed script left nothing behind.
+     */
+    public List<StatementResult> execute(DbConnector connector) {
+        RetryPolicy policy = connector.retryPolicy();
+        List<List<StatementResult>> ret = new ArrayList<>(1);
+        connector.run(conn -> {
+            try {
+                for (int attempt = 1; ; attempt++) {
+                    try {
+                        ret.add(execute(conn));
+                        policy.committed(isolationLevel);
+                        return "";
+                    } catch (SQLException e) {
+                        if (!RetryPolicy.isRetryable(e) || !policy.shouldRetry(isolationLevel, attempt)) {
+                            throw e;
+                        }
+                    }
+                    policy.backoff(attempt);
+                }
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        });
+        return ret.get(0);
+    }
+
+    /**
+     * The statements before 'statement' did run, but their counts went down with the response the driver dropped,
+     * they are reported as SUCCESS_NO_INFO. All rolled back anyway.
+     * UNKNOWN when the ROLLBACK or reading the marker failed as well: no counts, and no promise it was rolled back.
+     */
+    private BatchUpdateException failure(SQLException cause, int statement) {
+        if (statement == UNKNOWN) {
+            return new BatchUpdateException("A statement failed, and rolling back or finding out which one failed too "
+                    + "(see suppressed): " + cause.getMessage(), cause.getSQLState(), cause.getErrorCode(), new int[0],
+                    cause);
+        }
+        String where = statement < 0 ? "Starting the transaction"
+                : statement < statements.size() ? "Statement " + statement + " (" + statements.get(statement) + ")"
+                : "COMMIT";
+        int[] updateCounts = new int[Math.max(0, Math.min(statement, statements.size()))];
+        Arrays.fill(updateCounts, Statement.SUCCESS_NO_INFO);
+        return new BatchUpdateException(where + " failed, the transaction was rolled back: " + cause.getMessage(),
+                cause.getSQLState(), cause.getErrorCode(), updateCounts, cause);
+    }
+}
@@ -0,0 +1,229 @@
+package workshop_tnx_isolation;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Picks where DbConnector.readOnly runs: one of the replicas if one is fresh enough, the primary otherwise.
+ * * *
+ * Every 'checkEvery' each replica is asked how far behind it is (SHOW REPLICA STATUS, Seconds_Behind_Source).
+ * A replica is used only if its last check succeeded, is recent, and the lag was at most 'maxStaleness'. So a reader
+ * may see data up to 'maxStaleness' old, never worse; a replica that stops replicating, falls behind or can't be
+ * reached drops out until a check says it's fine again. With no replica left the primary gets the reads.
+ * * *
+ * Selection among the usable replicas:
+ * * ROUND_ROBIN  : one after the other.
+ * * LEAST_LOADED : the one with the fewest connections in use right now.
+ * * *
+ * No replicas around? Stand-ins are endpoints that pretend to be replicas with a fixed lag, usually the primary
+ * itself under another name. -Dtnx.replicaStandIns=2 -Dtnx.standInLagMillis=300 gives the default DbConnector two.
+ */
+public class ReplicaRouter implements AutoCloseable {
+
+    public enum Selection {ROUND_ROBIN, LEAST_LOADED}
+
+    /**
+     * A replica at 'config'. 'standInLag' is the lag a stand-in reports instead of asking MySql, null for a real one.
+     */
+    public record Endpoint(String name, ConnectionPool.Config config, Duration standInLag) {
+        public static Endpoint replica(String name, ConnectionPool.Config config) {
+            return new Endpoint(name, config, null);
+        }
+
+        public static Endpoint standIn(String name, ConnectionPool.Config config, Duration lag) {
+            return new Endpoint(name, config, lag);
+        }
+    }
+
+    private static final class Replica {
+        final Endpoint endpoint;
+        final ConnectionPool pool;
+        final LongAdder routed = new LongAdder();
+        // Long.MAX_VALUE until the first successful check, and after any failed one.
+        volatile long lagMillis = Long.MAX_VALUE;
+        volatile long checkedAtNanos;
+
+        Replica(Endpoint endpoint) {
+            this.endpoint = endpoint;
+            this.pool = new ConnectionPool(endpoint.config());
+        }
+    }
+
+    private final List<Replica> replicas = new ArrayList<>();
+    private final Selection selection;
+    private final long maxStalenessMillis;
+    private final long checkEveryNanos;
+    private final ScheduledExecutorService checker;
+    private final AtomicInteger next = new AtomicInteger();
+    private final LongAdder toPrimary = new LongAdder();
+
+    public ReplicaRouter(List<Endpoint> endpoints, Selection selection, Duration maxStaleness, Duration checkEvery) {
+        for (Endpoint endpoint : endpoints) {
+            replicas.add(new Replica(endpoint));
+        }
+        this.selection = selection;
+        this.maxStalenessMillis = maxStaleness.toMillis();
+        this.checkEveryNanos = checkEvery.toNanos();
+        if (replicas.isEmpty()) {
+            this.checker = null;
+            return;
+        }
+        this.checker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "replica-lag-checker");
+            t.setDaemon(true);
+            return t;
+        });
+        checker.scheduleWithFixedDelay(this::checkAll, 0, checkEvery.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Everything goes to the primary.
+     */
+    public static ReplicaRouter none() {
+        return new ReplicaRouter(List.of(), Selection.ROUND_ROBIN, Duration.ZERO, Duration.ZERO);
+    }
+
+    /**
+     * Replicas of 'primary' from system properties, none if nothing is set:
+     * * tnx.replicas          : comma separated JDBC urls, same user and password as the primary
+     * * tnx.replicaStandIns   : that many stand-ins on the primary's own url
+     * * tnx.standInLagMillis  : the lag the stand-ins report, 0 by default
+     * * tnx.replicaSelection  : ROUND_ROBIN (default) or LEAST_LOADED
+     * * tnx.maxReplicaLagMillis : the staleness bound, 1000 by default
+     */
+    public static ReplicaRouter fromSystemProperties(ConnectionPool.Config primary) {
+        List<Endpoint> endpoints = new ArrayList<>();
+        String urls = System.getProperty("tnx.replicas", "");
+        for (String url : urls.split(",")) {
+            if (!url.isBlank()) {
+                ConnectionPool.Config config = new ConnectionPool.Config(url.trim(), primary.username(), primary.password(),
+                        0, primary.maxSize(), primary.idleTimeout(), primary.borrowTimeout(), primary.validationWindow());
+                endpoints.add(Endpoint.replica("replica" + endpoints.size(), config));
+            }
+        }
+        Duration standInLag = Duration.ofMillis(Long.getLong("tnx.standInLagMillis", 0));
+        for (int i = 0; i < Integer.getInteger("tnx.replicaStandIns", 0); i++) {
+            endpoints.add(Endpoint.standIn("standIn" + i, primary.withSize(0, primary.maxSize()), standInLag));
+        }
+        Selection selection = Selection.valueOf(System.getProperty("tnx.replicaSelection", "ROUND_ROBIN"));
+        return new ReplicaRouter(endpoints, selection, Duration.ofMillis(Long.getLong("tnx.maxReplicaLagMillis", 1000)),
+                Duration.ofMillis(500));
+    }
+
+    /**
+     * The pool of the replica to read from, or null for the primary.
+     */
+    ConnectionPool pick() {
+        Replica ret = null;
+        if (selection == Selection.ROUND_ROBIN) {
+            int start = next.getAndIncrement();
+            for (int i = 0; i < replicas.size() && ret == null; i++) {
+                Replica candidate = replicas.get(Math.floorMod(start + i, replicas.size()));
+                if (usable(candidate)) {
+                    ret = candidate;
+                }
+            }
+        } else {
+            int leastActive = Integer.MAX_VALUE;
+            for (Replica candidate : replicas) {
+                int active = candidate.pool.stats().active();
+                if (usable(candidate) && active < leastActive) {
+                    ret = candidate;
+                    leastActive = active;
+                }
+            }
+        }
+        if (ret == null) {
+            toPrimary.increment();
+            return null;
+        }
+        ret.routed.increment();
+        return ret.pool;
+    }
+
+    /**
+     * Borrowing from 'pool' failed, take it out of rotation until the next check.
+     */
+    void unreachable(ConnectionPool pool) {
+        for (Replica replica : replicas) {
+            if (replica.pool == pool) {
+                replica.lagMillis = Long.MAX_VALUE;
+            }
+        }
+    }
+
+    private boolean usable(Replica replica) {
+        // A check older than three periods means the checker itself is stuck, don't trust what it saw.
+        return replica.lagMillis <= maxStalenessMillis
+                && System.nanoTime() - replica.checkedAtNanos < 3 * checkEveryNanos;
+    }
+
+    private void checkAll() {
+        for (Replica replica : replicas) {
+            long lag;
+            try {
+                lag = lagMillis(replica);
+            } catch (SQLException | RuntimeException e) {
+                lag = Long.MAX_VALUE;
+            }
+            replica.lagMillis = lag;
+            replica.checkedAtNanos = System.nanoTime();
+        }
+    }
+
+    private static long lagMillis(Replica replica) throws SQLException {
+        Connection conn = replica.pool.borrow();
+        boolean reusable = false;
+        try (Statement st = conn.createStatement()) {
+            long ret;
+            if (replica.endpoint.standInLag() != null) {
+                st.execute("SELECT 1");
+                ret = replica.endpoint.standInLag().toMillis();
+            } else {
+                try (ResultSet rs = st.executeQuery("SHOW REPLICA STATUS")) {
+                    // No row: not a replica at all. NULL: replication is stopped. Either way nothing to read from.
+                    long seconds = rs.next() ? rs.getLong("Seconds_Behind_Source") : -1;
+                    ret = seconds < 0 || rs.wasNull() ? Long.MAX_VALUE : seconds * 1000;
+                }
+            }
+            reusable = true;
+            return ret;
+        } finally {
+            replica.pool.release(conn, reusable);
+        }
+    }
+
+    /**
+     * One line per replica: reads routed to it and its last lag, plus the reads that went to the primary.
+     */
+    public String report() {
+        StringBuilder ret = new StringBuilder();
+        for (Replica replica : replicas) {
+            long lag = replica.lagMillis;
+            ret.append(replica.endpoint.name()).append(": routed=").append(replica.routed.sum())
+                    .append(" lag=").append(lag == Long.MAX_VALUE ? "unavailable" : lag + "ms").append('\n');
+        }
+        ret.append("primary: routed=").append(toPrimary.sum()).append('\n');
+        return ret.toString();
+    }
+
+    @Override
+    public void close() {
+        if (checker != null) {
+            checker.shutdownNow();
+        }
+        for (Replica replica : replicas) {
+            replica.pool.close();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package workshop_tnx_isolation;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * When and how often DbConnector.inTransaction re-runs a transaction that MySql aborted.
+ * * *
+ * Deadlocks (1213) and lock wait timeouts (1205) are not bugs, they are the database telling you "I had to kill one of
+ * you, try again". The stricter the isolation level, the more of them you get, that's part of its price.
+ * * *
+ * Retries back off exponentially with full jitter (sleep a random time between 0 and base * 2^attempt) so the
+ * transactions that collided don't collide again in lockstep.
+ * On top of the per transaction 'maxAttempts' there is a shared retry budget: every commit earns 'budgetRatio' of a
+ * retry, every retry spends one. When everything is failing, retries stop piling load on an already struggling database.
+ */
+public class RetryPolicy {
+    private static final long TOKEN = 1000;
+
+    public record Stats(long commits, long retries, long aborts, long givenUp) {
+        public double abortRate() {
+            long attempts = commits + aborts;
+            return attempts == 0 ? 0 : (double) aborts / attempts;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("commits=%d retries=%d aborts=%d givenUp=%d abortRate=%.3f",
+                    commits, retries, aborts, givenUp, abortRate());
+        }
+    }
+
+    private static final class Counters {
+        final LongAdder commits = new LongAdder();
+        final LongAdder retries = new LongAdder();
+        final LongAdder aborts = new LongAdder();
+        final LongAdder givenUp = new LongAdder();
+    }
+
+    private final int maxAttempts;
+    private final Duration baseBackoff;
+    private final Duration maxBackoff;
+    private final long tokensPerCommit;
+    private final long maxTokens;
+    private final AtomicLong budget;
+    private final Map<String, Counters> perIsolationLevel = new ConcurrentHashMap<>();
+
+    /**
+     * 'budgetRatio' 0.1 means at most one retry per ten commits once the initial allowance of 'maxTokens' is spent.
+     */
+    public RetryPolicy(int maxAttempts, Duration baseBackoff, Duration maxBackoff, double budgetRatio, int initialRetries) {
+        this.maxAttempts = maxAttempts;
+        this.baseBackoff = baseBackoff;
+        this.maxBackoff = maxBackoff;
+        this.tokensPerCommit = (long) (budgetRatio * TOKEN);
+        this.maxTokens = initialRetries * TOKEN;
+        this.budget = new AtomicLong(maxTokens);
+    }
+
+    public static RetryPolicy defaults() {
+        return new RetryPolicy(10, Duration.ofMillis(5), Duration.ofSeconds(1), 0.2, 100);
+    }
+
+    /**
+     * MySql gave up on the transaction (deadlock, lock wait timeout or serialization failure) and rolled it back.
+     */
+    public static boolean isRetryable(SQLException e) {
+        return e.getErrorCode() == 1213 || e.getErrorCode() == 1205 || "40001".equals(e.getSQLState());
+    }
+
+    public int maxAttempts() {
+        return maxAttempts;
+    }
+
+    void committed(String isolationLevel) {
+        counters(isolationLevel).commits.increment();
+        budget.getAndUpdate(b -> Math.min(maxTokens, b + tokensPerCommit));
+    }
+
+    /**
+     * Records the abort and tells whether attempt number 'attempt' (1 based) may be retried.
+     */
+    boolean shouldRetry(String isolationLevel, int attempt) {
+        Counters c = counters(isolationLevel);
+        c.aborts.increment();
+        if (attempt >= maxAttempts || budget.getAndUpdate(b -> b >= TOKEN ? b - TOKEN : b) < TOKEN) {
+            c.givenUp.increment();
+            return false;
+        }
+        c.retries.increment();
+        return true;
+    }
+
+    void backoff(int attempt) throws InterruptedException {
+        long cap = Math.min(maxBackoff.toNanos(), baseBackoff.toNanos() << Math.min(attempt, 30));
+        long sleep = ThreadLocalRandom.current().nextLong(Math.max(1, cap));
+        Thread.sleep(sleep / 1_000_000, (int) (sleep % 1_000_000));
+    }
+
+    public Stats stats(String isolationLevel) {
+        Counters c = counters(isolationLevel);
+        return new Stats(c.commits.sum(), c.retries.sum(), c.aborts.sum(), c.givenUp.sum());
+    }
+
+    /**
+     * One line per isolation level seen so far.
+     */
+    public String report() {
+        StringBuilder ret = new StringBuilder();
+        for (String level : new TreeMap<>(perIsolationLevel).keySet()) {
+            ret.append(level).append(": ").append(stats(level)).append('\n');
+        }
+        return ret.toString();
+    }
+
+    private Counters counters(String isolationLevel) {
+        return perIsolationLevel.computeIfAbsent(isolationLevel, k -> new Counters());
+    }
+}
@@ -0,0 +1,292 @@
+package workshop_tnx_isolation;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A counter like M1's gbCount split over 'shards' rows, for the account everybody is sending gbs to at once.
+ * * *
+ * With one row per user every "+1" for Margot takes the same row lock and they all commit one after the other.
+ * Here Margot is 'shards' rows in '<table>Shards' (key, shard, value) and her gbCount is their SUM. Each thread has a
+ * home shard and increments only that row, so up to 'shards' increments run at once instead of one.
+ * * *
+ * Overflow: the logical counter has to stay within [0, max], e.g. Integer.MAX_VALUE for an INT column, but no single
+ * row sees the total. So every shard gets a cap, max / shards, and the caps add up to max. An increment goes through
+ * on the home shard only if that shard stays within [0, cap], one UPDATE, no read. If it doesn't, the slow path locks
+ * all the key's shards, checks the real total and either spreads the new total evenly over the shards again
+ * (rebalancing, so the next increments fit) or fails the way MySql does: SQLState 22003 "Out of range value".
+ * Julius, seeded 7 below Integer.MAX_VALUE, still gets exactly 7 more gbs and not one more.
+ * * *
+ * 'total' sums the shards, a range read over 'shards' rows. 'cachedTotal' answers from memory, refreshed in the
+ * background every 'refreshTotalsEvery' for every key it was asked about. It lags, it's for displays, not for checks.
+ */
+public class ShardedCounter implements AutoCloseable {
+
+    public record Stats(long increments, long rebalances, long outOfRange, long totalRefreshes) {
+        @Override
+        public String toString() {
+            return "increments=" + increments + " rebalances=" + rebalances + " outOfRange=" + outOfRange
+                    + " totalRefreshes=" + totalRefreshes;
+        }
+    }
+
+    private static final AtomicInteger nextHome = new AtomicInteger();
+    private static final ThreadLocal<Integer> home = ThreadLocal.withInitial(nextHome::getAndIncrement);
+
+    private final DbConnector connector;
+    private final String shardTable;
+    private final String keyColumn;
+    private final String valueColumn;
+    private final int shards;
+    private final long max;
+    private final String increment;
+    private final String lockShards;
+    private final String write;
+    private final String sum;
+
+    private final Map<String, Long> cachedTotals = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService refresher;
+
+    private final LongAdder increments = new LongAdder();
+    private final LongAdder rebalances = new LongAdder();
+    private final LongAdder outOfRange = new LongAdder();
+    private final LongAdder totalRefreshes = new LongAdder();
+
+    /**
+     * Counters named 'table' live in '<table>Shards', see 'createTable'.
+     * 'refreshTotalsEvery' null means no background refresh, 'cachedTotal' then always sums the shards.
+     */
+    public ShardedCounter(DbConnector connector, String table, String keyColumn, String valueColumn, int shards, long max,
+                          Duration refreshTotalsEvery) {
+        this.connector = connector;
+        this.shardTable = table + "Shards";
+        this.keyColumn = keyColumn;
+        this.valueColumn = valueColumn;
+        this.shards = shards;
+        this.max = max;
+        this.increment = "UPDATE " + shardTable + " SET " + valueColumn + " = " + valueColumn + " + ?"
+                + " WHERE " + keyColumn + "=? AND shard=? AND " + valueColumn + " + ? BETWEEN 0 AND ?";
+        this.lockShards = "SELECT shard, " + valueColumn + " FROM " + shardTable + " WHERE " + keyColumn + "=? FOR UPDATE";
+        this.write = "UPDATE " + shardTable + " SET " + valueColumn + "=? WHERE " + keyColumn + "=? AND shard=?";
+        this.sum = "SELECT SUM(" + valueColumn + ") FROM " + shardTable + " WHERE " + keyColumn + "=?";
+        if (refreshTotalsEvery == null) {
+            this.refresher = null;
+        } else {
+            this.refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "sharded-counter-" + table);
+                t.setDaemon(true);
+                return t;
+            });
+            long interval = refreshTotalsEvery.toMillis();
+            refresher.scheduleWithFixedDelay(this::refreshTotals, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * (Re)creates '<table>Shards'.
+     */
+    public void createTable(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            st.execute("DROP TABLE IF EXISTS " + shardTable);
+            st.execute("CREATE TABLE " + shardTable + "(" + keyColumn + " varchar(255), shard INT, "
+                    + valueColumn + " BIGINT NOT NULL, PRIMARY KEY(" + keyColumn + ", shard))");
+        }
+    }
+
+    /**
+     * Creates the counter 'key' with 'value' spread over its shards.
+     */
+    public void create(Connection conn, String key, long value) throws SQLException {
+        checkRange(key, value);
+        PreparedStatement ps = DbConnector.prepare(conn, "INSERT INTO " + shardTable + " VALUES (?, ?, ?)");
+        long[] split = split(value);
+        for (int i = 0; i < shards; i++) {
+            ps.setString(1, key);
+            ps.setInt(2, i);
+            ps.setLong(3, split[i]);
+            ps.addBatch();
+        }
+        ps.executeBatch();
+    }
+
+    /**
+     * Creates one counter per row of 'sourceTable', starting from its current 'valueColumn', e.g. every user's gbCount
+     * from UserInventory.
+     */
+    public void importFrom(Connection conn, String sourceTable) throws SQLException {
+        List<String> keys = new ArrayList<>();
+        List<Long> values = new ArrayList<>();
+        try (Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery("SELECT " + keyColumn + ", " + valueColumn + " FROM " + sourceTable)) {
+            while (rs.next()) {
+                keys.add(rs.getString(1));
+                values.add(rs.getLong(2));
+            }
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            create(conn, keys.get(i), values.get(i));
+        }
+    }
+
+    /**
+     * Adds 'delta' (negative to subtract) to the counter 'key' on its own connection.
+     */
+    public void increment(String key, long delta) {
+        connector.run(conn -> {
+            try {
+                increment(conn, key, delta);
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+            return "";
+        });
+    }
+
+    /**
+     * Adds 'delta' to the counter 'key' on 'conn', which must be in autocommit mode.
+     *
+     * @throws SQLException with SQLState 22003 if the counter would leave [0, max]
+     */
+    public void increment(Connection conn, String key, long delta) throws SQLException {
+        int shard = Math.floorMod(home.get(), shards);
+        if (DbConnector.prepare(conn, increment, delta, key, shard, delta, cap(shard)).executeUpdate() == 1) {
+            increments.increment();
+            return;
+        }
+        rebalance(conn, key, delta);
+        increments.increment();
+    }
+
+    /**
+     * The home shard is full (or empty, for a decrement). Locks every shard of 'key', applies 'delta' to the total and
+     * spreads it evenly again.
+     */
+    private void rebalance(Connection conn, String key, long delta) throws SQLException {
+        conn.setAutoCommit(false);
+        try {
+            long[] current = new long[shards];
+            int found = 0;
+            try (ResultSet rs = DbConnector.prepare(conn, lockShards, key).executeQuery()) {
+                while (rs.next()) {
+                    current[rs.getInt(1)] = rs.getLong(2);
+                    found++;
+                }
+            }
+            if (found == 0) {
+                throw new SQLException("No counter '" + key + "' in " + shardTable);
+            }
+            long total = 0;
+            for (long v : current) {
+                total += v;
+            }
+            checkRange(key, total + delta);
+            long[] split = split(total + delta);
+            PreparedStatement ps = DbConnector.prepare(conn, write);
+            for (int i = 0; i < shards; i++) {
+                if (split[i] != current[i]) {
+                    ps.setLong(1, split[i]);
+                    ps.setString(2, key);
+                    ps.setInt(3, i);
+                    ps.addBatch();
+                }
+            }
+            ps.executeBatch();
+            conn.commit();
+            rebalances.increment();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * The exact value, summed over the shards.
+     */
+    public long total(String key) {
+        long[] ret = {0};
+        connector.run(conn -> {
+            try (ResultSet rs = DbConnector.prepare(conn, sum, key).executeQuery()) {
+                rs.next();
+                ret[0] = rs.getLong(1);
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+            return "";
+        });
+        return ret[0];
+    }
+
+    /**
+     * The total as of the last background refresh, at most 'refreshTotalsEvery' old. The first call for a key sums
+     * the shards right away and from then on the key is refreshed with the others.
+     */
+    public long cachedTotal(String key) {
+        if (refresher == null) {
+            return total(key);
+        }
+        return cachedTotals.computeIfAbsent(key, this::total);
+    }
+
+    private void refreshTotals() {
+        for (String key : cachedTotals.keySet()) {
+            try {
+                cachedTotals.put(key, total(key));
+                totalRefreshes.increment();
+            } catch (RuntimeException e) {
+                // Keep serving the last known total, the next refresh tries again.
+            }
+        }
+    }
+
+    public Stats stats() {
+        return new Stats(increments.sum(), rebalances.sum(), outOfRange.sum(), totalRefreshes.sum());
+    }
+
+    /**
+     * Shard i may hold up to max / shards, the first max % shards shards one more, so the caps add up to exactly max.
+     */
+    private long cap(int shard) {
+        return max / shards + (shard < max % shards ? 1 : 0);
+    }
+
+    /**
+     * 'value' spread over the shards the same way as the caps, so no shard ends up over its cap.
+     */
+    private long[] split(long value) {
+        long[] ret = new long[shards];
+        for (int i = 0; i < shards; i++) {
+            ret[i] = value / shards + (i < value % shards ? 1 : 0);
+        }
+        return ret;
+    }
+
+    private void checkRange(String key, long value) throws SQLException {
+        if (value < 0 || value > max) {
+            outOfRange.increment();
+            throw new SQLException("Out of range value for counter '" + key + "' in " + shardTable + ": " + value,
+                    "22003", 1264);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,504 @@
+package workshop_tnx_isolation;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The "backup while users keep writing" from the end of M3_ReadCommitted: dumps tables to CSV files, in parallel,
+ * all of them as of ONE point in time, without stopping the writers.
+ * * *
+ * Every worker has its own connection and its own REPEATABLE READ transaction. For their snapshots to be the same
+ * point in time they are opened together, mydumper style: a coordinator connection takes FLUSH TABLES WITH READ LOCK
+ * (no commit can happen), every worker runs START TRANSACTION WITH CONSISTENT SNAPSHOT, and the lock is released.
+ * Writers are stalled only for the few milliseconds that takes. FTWRL needs the RELOAD privilege, without it the
+ * snapshots are opened back to back anyway and the report says they may be a few commits apart.
+ * * *
+ * Tables are cut into up to 'chunksPerTable' primary key ranges, the boundaries taken from a scan of the key column
+ * before the snapshot (any boundaries will do, the ranges cover the whole key space). Workers take ranges from a shared
+ * queue, so one big table keeps every worker busy. Each range is read with a streaming cursor (Util.streamingStatement)
+ * and written to '<table>.<part>.csv' through a FileChannel, so memory use doesn't depend on table size.
+ * * *
+ * The CSV is what SELECT ... INTO OUTFILE writes with FIELDS TERMINATED BY ',' OPTIONALLY ENCLOSED BY '"', plus a
+ * header line. LOAD DATA with the same clauses and IGNORE 1 LINES reads it back, NULLs included (\N).
+ * * *
+ * With 'probeWriters' a background thread keeps running one row UPDATEs, first for 'probeWindow' before the export
+ * and then during it. The report puts the two latency distributions side by side: what the export cost the writers.
+ */
+public class SnapshotExporter {
+
+    public record Report(long rows, long bytes, int files, long nanos, boolean consistent,
+                         String writersBefore, String writersDuring) {
+        public double megabytesPerSecond() {
+            return bytes / 1_000_000.0 / Math.max(1e-9, nanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            String ret = String.format("%d rows, %d files, %.1f MB in %d ms (%.1f MB/s), %s",
+                    rows, files, bytes / 1_000_000.0, TimeUnit.NANOSECONDS.toMillis(nanos), megabytesPerSecond(),
+                    consistent ? "one consistent snapshot" : "snapshots not all opened under FTWRL, may differ by a few commits");
+            if (writersBefore != null) {
+                ret += "\nwriters before export: " + writersBefore + "\nwriters during export: " + writersDuring;
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * One primary key range of a table, [from, to), null meaning unbounded.
+     */
+    private record Chunk(String table, String key, String from, String to, int part) {
+    }
+
+    private static final String PROBE_TABLE = "ExportWriterProbe";
+    private static final int PROBE_ROWS = 100;
+
+    private final DbConnector connector;
+    private int parallelism = 4;
+    private int chunksPerTable = 16;
+    private int bufferSize = 1 << 20;
+    private boolean probeWriters = true;
+    private long probeWindowMillis = 1000;
+
+    /**
+     * Uses parallelism + 2 of the connector's connections at once: the workers, the coordinator and the probe.
+     */
+    public SnapshotExporter(DbConnector connector) {
+        this.connector = connector;
+    }
+
+    public SnapshotExporter parallelism(int parallelism) {
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    public SnapshotExporter chunksPerTable(int chunksPerTable) {
+        this.chunksPerTable = chunksPerTable;
+        return this;
+    }
+
+    public SnapshotExporter bufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+        return this;
+    }
+
+    public SnapshotExporter probeWriters(boolean probeWriters, long probeWindowMillis) {
+        this.probeWriters = probeWriters;
+        this.probeWindowMillis = probeWindowMillis;
+        return this;
+    }
+
+    /**
+     * Exports 'tables' into 'dir', one or more CSV files per table.
+     */
+    public Report export(List<String> tables, Path dir) {
+        int connections = parallelism + 1 + (probeWriters ? 1 : 0);
+        if (connections > connector.poolConfig().maxSize()) {
+            // Workers that can't all get a connection while the coordinator holds the lock would open their
+            // snapshots one after the other, or wait for a lock that never comes.
+            throw new IllegalStateException("Exporting with parallelism " + parallelism + " needs " + connections
+                    + " connections, the pool has " + connector.poolConfig().maxSize());
+        }
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        WriterProbe probe = probeWriters ? new WriterProbe() : null;
+        String writersBefore = null;
+        if (probe != null) {
+            writersBefore = probe.measure(probeWindowMillis);
+        }
+
+        long start = System.nanoTime();
+        Queue<Chunk> chunks = new ConcurrentLinkedQueue<>();
+        for (String table : tables) {
+            chunks.addAll(chunks(table));
+        }
+        LongAdder rows = new LongAdder();
+        LongAdder bytes = new LongAdder();
+        int files = chunks.size();
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch snapshotsOpen = new CountDownLatch(parallelism);
+        AtomicBoolean lockHeld = new AtomicBoolean();
+        // Cleared by a worker that stopped waiting for the lock, or a coordinator that stopped waiting for the workers.
+        AtomicBoolean allUnderLock = new AtomicBoolean(true);
+
+        ExecutorService exec = Executors.newFixedThreadPool(parallelism + 1);
+        long nanos;
+        String writersDuring = null;
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            tasks.add(exec.submit(() -> coordinate(locked, snapshotsOpen, lockHeld, allUnderLock)));
+            for (int i = 0; i < parallelism; i++) {
+                tasks.add(exec.submit(() -> work(chunks, dir, locked, snapshotsOpen, allUnderLock, rows, bytes)));
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+            nanos = System.nanoTime() - start;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            exec.shutdownNow();
+            if (probe != null) {
+                writersDuring = probe.stop();
+            }
+        }
+        return new Report(rows.sum(), bytes.sum(), files, nanos, lockHeld.get() && allUnderLock.get(),
+                writersBefore, writersDuring);
+    }
+
+    /**
+     * Holds FLUSH TABLES WITH READ LOCK until every worker has its snapshot.
+     */
+    private void coordinate(CountDownLatch locked, CountDownLatch snapshotsOpen, AtomicBoolean lockHeld,
+                            AtomicBoolean allUnderLock) {
+        connector.run(conn -> {
+            try (Statement st = conn.createStatement()) {
+                try {
+                    st.execute("FLUSH TABLES WITH READ LOCK");
+                    lockHeld.set(true);
+                } catch (SQLException e) {
+                    // No RELOAD privilege (1227) most likely, go on without the lock.
+                }
+                locked.countDown();
+                try {
+                    if (!snapshotsOpen.await(1, TimeUnit.MINUTES)) {
+                        allUnderLock.set(false);
+                    }
+                } finally {
+                    if (lockHeld.get()) {
+                        st.execute("UNLOCK TABLES");
+                    }
+                }
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } finally {
+                locked.countDown();
+            }
+            return "";
+        });
+    }
+
+    private void work(Queue<Chunk> chunks, Path dir, CountDownLatch locked, CountDownLatch snapshotsOpen,
+                      AtomicBoolean allUnderLock, LongAdder rows, LongAdder bytes) {
+        connector.run(conn -> {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+            try (Statement st = conn.createStatement()) {
+                try {
+                    if (!locked.await(1, TimeUnit.MINUTES)) {
+                        allUnderLock.set(false);
+                    }
+                    st.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+                    st.execute("START TRANSACTION WITH CONSISTENT SNAPSHOT, READ ONLY");
+                } finally {
+                    snapshotsOpen.countDown();
+                }
+                for (Chunk chunk = chunks.poll(); chunk != null; chunk = chunks.poll()) {
+                    rows.add(exportChunk(conn, chunk, dir, buffer, bytes));
+                }
+                st.execute("COMMIT");
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            return "";
+        });
+    }
+
+    private long exportChunk(Connection conn, Chunk chunk, Path dir, ByteBuffer buffer, LongAdder bytes)
+            throws SQLException, IOException {
+        StringBuilder sql = new StringBuilder("SELECT * FROM ").append(chunk.table());
+        List<String> params = new ArrayList<>(2);
+        if (chunk.from() != null) {
+            sql.append(" WHERE ").append(chunk.key()).append(" >= ?");
+            params.add(chunk.from());
+        }
+        if (chunk.to() != null) {
+            sql.append(params.isEmpty() ? " WHERE " : " AND ").append(chunk.key()).append(" < ?");
+            params.add(chunk.to());
+        }
+        Path file = dir.resolve(chunk.table() + "." + chunk.part() + ".csv");
+        long count = 0;
+        try (PreparedStatement ps = conn.prepareStatement(sql.toString(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+             FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                     StandardOpenOption.WRITE)) {
+            ps.setFetchSize(Integer.MIN_VALUE); // stream it, see Util.streamingStatement
+            for (int i = 0; i < params.size(); i++) {
+                ps.setString(i + 1, params.get(i));
+            }
+            CsvWriter csv = new CsvWriter(out, buffer);
+            try (ResultSet rs = ps.executeQuery()) {
+                ResultSetMetaData meta = rs.getMetaData();
+                int columns = meta.getColumnCount();
+                for (int c = 1; c <= columns; c++) {
+                    csv.field(meta.getColumnLabel(c), c == 1);
+                }
+                csv.endLine();
+                while (rs.next()) {
+                    for (int c = 1; c <= columns; c++) {
+                        csv.field(rs.getString(c), c == 1);
+                    }
+                    csv.endLine();
+                    count++;
+                }
+            }
+            csv.flush();
+            bytes.add(out.position());
+        }
+        return count;
+    }
+
+    /**
+     * The key ranges of 'table'. Tables without a single column primary key are exported as one chunk.
+     */
+    private List<Chunk> chunks(String table) {
+        List<String> key = connector.query("SELECT COLUMN_NAME FROM information_schema.KEY_COLUMN_USAGE"
+                        + " WHERE TABLE_SCHEMA=DATABASE() AND TABLE_NAME=? AND CONSTRAINT_NAME='PRIMARY' ORDER BY ORDINAL_POSITION",
+                rs -> rs.getString(1), table);
+        List<Chunk> ret = new ArrayList<>();
+        if (key.size() != 1 || chunksPerTable <= 1) {
+            ret.add(new Chunk(table, null, null, null, 0));
+            return ret;
+        }
+        List<Long> estimate = connector.query("SELECT TABLE_ROWS FROM information_schema.TABLES"
+                + " WHERE TABLE_SCHEMA=DATABASE() AND TABLE_NAME=?", rs -> rs.getLong(1), table);
+        long step = Math.max(1, (estimate.isEmpty() ? 0 : estimate.get(0)) / chunksPerTable);
+        List<String> boundaries = new ArrayList<>();
+        connector.run(conn -> {
+            try (Statement st = Util.streamingStatement(conn);
+                 ResultSet rs = st.executeQuery("SELECT " + key.get(0) + " FROM " + table + " ORDER BY " + key.get(0))) {
+                for (long i = 0; rs.next(); i++) {
+                    if (i > 0 && i % step == 0 && boundaries.size() < chunksPerTable - 1) {
+                        boundaries.add(rs.getString(1));
+                    }
+                }
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+            return "";
+        });
+        String from = null;
+        for (String to : boundaries) {
+            ret.add(new Chunk(table, key.get(0), from, to, ret.size()));
+            from = to;
+        }
+        ret.add(new Chunk(table, key.get(0), from, null, ret.size()));
+        return ret;
+    }
+
+    /**
+     * Encodes CSV fields straight into a (direct) buffer and hands full buffers to the channel.
+     */
+    private static final class CsvWriter {
+        private final FileChannel out;
+        private final ByteBuffer buffer;
+        private final CharsetEncoder utf8 = StandardCharsets.UTF_8.newEncoder();
+        private final StringBuilder escaped = new StringBuilder();
+
+        CsvWriter(FileChannel out, ByteBuffer buffer) {
+            this.out = out;
+            this.buffer = buffer;
+            buffer.clear();
+        }
+
+        void field(String value, boolean first) throws IOException {
+            if (!first) {
+                put(',');
+            }
+            if (value == null) {
+                put('\\');
+                put('N');
+            } else if (needsQuotes(value)) {
+                escaped.setLength(0);
+                escaped.append('"');
+                for (int i = 0; i < value.length(); i++) {
+                    char c = value.charAt(i);
+                    switch (c) {
+                        case '"' -> escaped.append("\\\"");
+                        case '\\' -> escaped.append("\\\\");
+                        case '\n' -> escaped.append("\\n");
+                        case '\r' -> escaped.append("\\r");
+                        case '\0' -> escaped.append("\\0");
+                        default -> escaped.append(c);
+                    }
+                }
+                escaped.append('"');
+                put(escaped);
+            } else {
+                put(value);
+            }
+        }
+
+        void endLine() throws IOException {
+            put('\n');
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        private static boolean needsQuotes(String value) {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == ',' || c == '"' || c == '\\' || c == '\n' || c == '\r' || c == '\0') {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void put(char c) throws IOException {
+            if (c < 0x80) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                buffer.put((byte) c);
+            } else {
+                put(String.valueOf(c));
+            }
+        }
+
+        private void put(CharSequence chars) throws IOException {
+            CharBuffer in = CharBuffer.wrap(chars);
+            utf8.reset();
+            while (true) {
+                CoderResult result = utf8.encode(in, buffer, true);
+                if (result.isOverflow()) {
+                    flush();
+                } else if (result.isUnderflow()) {
+                    return;
+                } else {
+                    result.throwException();
+                }
+            }
+        }
+    }
+
+    /**
+     * One row UPDATEs on a table of its own, back to back, timed.
+     */
+    private final class WriterProbe {
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private final Thread thread;
+        private volatile boolean running = true;
+
+        WriterProbe() {
+            connector.run(conn -> {
+                try (Statement st = conn.createStatement()) {
+                    st.execute("DROP TABLE IF EXISTS " + PROBE_TABLE);
+                    st.execute("CREATE TABLE " + PROBE_TABLE + "(id INT PRIMARY KEY, n BIGINT)");
+                    StringBuilder insert = new StringBuilder("INSERT INTO " + PROBE_TABLE + " VALUES ");
+                    for (int i = 0; i < PROBE_ROWS; i++) {
+                        insert.append(i == 0 ? "" : ", ").append("(").append(i).append(", 0)");
+                    }
+                    st.execute(insert.toString());
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+                return "";
+            });
+            thread = new Thread(this::loop, "export-writer-probe");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void loop() {
+            while (running) {
+                long start = System.nanoTime();
+                try {
+                    connector.update("UPDATE " + PROBE_TABLE + " SET n = n + 1 WHERE id=?",
+                            ThreadLocalRandom.current().nextInt(PROBE_ROWS));
+                } catch (RuntimeException e) {
+                    // Still a data point, the time it took to fail.
+                }
+                latencies.record(System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * Latencies over the next 'millis', then starts over for the next measurement.
+         */
+        String measure(long millis) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            String ret = latencies.summary();
+            latencies.reset();
+            return ret;
+        }
+
+        String stop() {
+            running = false;
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            connector.update("DROP TABLE IF EXISTS " + PROBE_TABLE);
+            return latencies.summary();
+        }
+    }
+
+    /**
+     * Fills the workshop tables with 'rows' rows each (100000 by default) and exports them into a temp directory,
+     * or the directory given as second argument.
+     */
+    public static void main(String[] args) throws IOException {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        Path dir = args.length > 1 ? Path.of(args[1]) : Files.createTempDirectory("export");
+        DbConnector connector = new DbConnector();
+        Workloads.createSchema(connector, rows);
+        Report report = new SnapshotExporter(connector)
+                .export(List.of("UserInventory", "MonthlyPay", "User", "PurchaseCart"), dir);
+        System.out.println("Exported to " + dir);
+        System.out.println(report);
+    }
+}
@@ -0,0 +1,101 @@
+package workshop_tnx_isolation;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per connection LRU cache of prepared statements, so hot statements get parsed once and executed many times.
+ * * *
+ * A statement is only valid on the connection that prepared it, hence one cache per connection.
+ * Statements handed out by 'prepare' belong to the cache: don't close them, they get closed when they fall out of
+ * the cache or when the connection pool closes the connection.
+ * * *
+ * By default MySql's driver only emulates prepared statements on the client. Add 'useServerPrepStmts=true'
+ * to the connection url (ConnectionPool.Config.withUrlParameters) to have the server parse them once as well.
+ */
+public class StatementCache {
+    public static final int CAPACITY = 64;
+
+    public record Stats(long hits, long misses, long evictions) {
+        public double hitRate() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits=%d misses=%d evictions=%d hitRate=%.2f", hits, misses, evictions, hitRate());
+        }
+    }
+
+    private static final Map<Connection, StatementCache> caches = new ConcurrentHashMap<>();
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
+
+    private final Connection connection;
+    private final LinkedHashMap<String, PreparedStatement> statements;
+
+    private StatementCache(Connection connection) {
+        this.connection = connection;
+        this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= CAPACITY) {
+                    return false;
+                }
+                evictions.increment();
+                closeQuietly(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * The cached statement for 'sql' on this connection, with its parameters cleared. Prepares it on a miss.
+     */
+    public static PreparedStatement prepare(Connection connection, String sql) throws SQLException {
+        return caches.computeIfAbsent(connection, StatementCache::new).get(sql);
+    }
+
+    /**
+     * Drops and closes everything cached for a connection that is about to be closed.
+     */
+    public static void forget(Connection connection) {
+        StatementCache cache = caches.remove(connection);
+        if (cache != null) {
+            cache.statements.values().forEach(StatementCache::closeQuietly);
+            cache.statements.clear();
+        }
+    }
+
+    public static Stats stats() {
+        return new Stats(hits.sum(), misses.sum(), evictions.sum());
+    }
+
+    private PreparedStatement get(String sql) throws SQLException {
+        // A connection is used by one thread at a time, the cache needs no locking of its own.
+        PreparedStatement ps = statements.get(sql);
+        if (ps != null && !ps.isClosed()) {
+            hits.increment();
+            ps.clearParameters();
+            return ps;
+        }
+        misses.increment();
+        ps = connection.prepareStatement(sql);
+        statements.put(sql, ps);
+        return ps;
+    }
+
+    private static void closeQuietly(PreparedStatement ps) {
+        try {
+            ps.close();
+        } catch (SQLException ignored) {
+        }
+    }
+}
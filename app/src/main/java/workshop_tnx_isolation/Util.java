@@ -2,29 +2,71 @@ package workshop_tnx_isolation;
 
 import com.google.common.base.Strings;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 
 public class Util {
+    private static final int CELL_WIDTH = 16;
+    private static final String CELL_PADDING = Strings.repeat(" ", CELL_WIDTH);
 
     // This formats stuff for printing.
     // Just make sure to keep tableNames under 45ch and columns under 15
     public static String resultSetToString(String tableName, ResultSet rs, String... columns) throws SQLException {
-        String ret = new String();
-        ret += Strings.padEnd(tableName, 46 - tableName.length(), '=') + "\n";
-        for (String colName : columns) {
-            ret += Strings.padEnd(colName, 16, ' ') + " | ";
-        }
-        ret += "\n";
-        ret += Strings.padEnd("", 46 - tableName.length(), '-') + "\n";
-        while (rs.next()) {
-            for (String colName : columns) {
-                ret += Strings.padEnd(rs.getObject(colName).toString(), 16, ' ') + " | ";
+        StringBuilder ret = new StringBuilder();
+        writeResultSet(ret, tableName, rs, columns);
+        return ret.toString();
+    }
+
+    /**
+     * Same format as 'resultSetToString' but rows go straight to 'out' as they are fetched, nothing is kept around.
+     * Pass System.out, a Writer, or Channels.newWriter(channel, UTF_8) for a file. Pair it with 'streamingStatement'
+     * and tables of any size print with constant memory.
+     */
+    public static void writeResultSet(Appendable out, String tableName, ResultSet rs, String... columns) throws SQLException {
+        try {
+            // Everything that is the same for every row is worked out once.
+            int[] indexes = new int[columns.length];
+            StringBuilder header = new StringBuilder();
+            header.append(Strings.padEnd(tableName, 46 - tableName.length(), '=')).append('\n');
+            for (int i = 0; i < columns.length; i++) {
+                indexes[i] = rs.findColumn(columns[i]);
+                appendCell(header, columns[i]);
+            }
+            header.append('\n');
+            header.append(Strings.padEnd("", 46 - tableName.length(), '-')).append('\n');
+            out.append(header);
+
+            while (rs.next()) {
+                for (int index : indexes) {
+                    Object value = rs.getObject(index);
+                    appendCell(out, value == null ? "NULL" : value.toString());
+                }
+                out.append('\n');
             }
-            ret += "\n";
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        return ret;
     }
 
+    /**
+     * A statement whose result sets are streamed row by row instead of loaded in memory all at once.
+     * With MySql, a streamed result set must be closed before the connection runs anything else.
+     */
+    public static Statement streamingStatement(Connection conn) throws SQLException {
+        Statement st = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        st.setFetchSize(Integer.MIN_VALUE); // MySql's way of saying "stream it"
+        return st;
+    }
 
+    private static void appendCell(Appendable out, String value) throws IOException {
+        out.append(value);
+        if (value.length() < CELL_WIDTH) {
+            out.append(CELL_PADDING, 0, CELL_WIDTH - value.length());
+        }
+        out.append(" | ");
+    }
 }
@@ -0,0 +1,209 @@
+package workshop_tnx_isolation;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The M1-M4 transactions without the SLEEPs and the printing, sized up to any number of rows.
+ * Used for measuring rather than for demonstrating: every method is one transaction and returns what it saw.
+ * * *
+ * Rows are named by number ('user42', 'buyer7', ...) so callers can pick random keys to spread or focus contention.
+ * Each buyer owns 'ITEMS_PER_CART' cart items.
+ */
+public class Workloads {
+    public static final int ITEMS_PER_CART = 10;
+
+    public static final String[] ISOLATION_LEVELS = {"READ UNCOMMITTED", "READ COMMITTED", "REPEATABLE READ", "SERIALIZABLE"};
+
+    private Workloads() {
+    }
+
+    public static void createTables(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            st.execute("DROP TABLE IF EXISTS UserInventory");
+            st.execute("DROP TABLE IF EXISTS MonthlyPay");
+            st.execute("DROP TABLE IF EXISTS TaxReport");
+            st.execute("DROP TABLE IF EXISTS User");
+            st.execute("DROP TABLE IF EXISTS Leaderboards");
+            st.execute("DROP TABLE IF EXISTS PurchaseCart");
+            st.execute("CREATE TABLE UserInventory(username varchar(255) PRIMARY KEY, gbCount int)");
+            st.execute("CREATE TABLE MonthlyPay(username varchar(255) PRIMARY KEY, paycheck int)");
+            st.execute("CREATE TABLE TaxReport(username varchar(255) PRIMARY KEY, isRich boolean)");
+            st.execute("CREATE TABLE User(username VARCHAR(255) PRIMARY KEY, livesInEurope BOOLEAN, points INT)");
+            // Unlike M3 the boards are TEXT, with real row counts the scorer list does not fit in 255 chars.
+            st.execute("CREATE TABLE Leaderboards(leaderboardName varchar(255) PRIMARY KEY, topScorers MEDIUMTEXT)");
+            st.execute("CREATE TABLE PurchaseCart(item VARCHAR(255) PRIMARY KEY, buyer VARCHAR(255) , price INT, taxApplied BOOLEAN)");
+        }
+    }
+
+    /**
+     * Recreates all the tables and fills each with 'rows' rows.
+     */
+    public static List<BulkLoader.Report> createSchema(BulkLoader loader, int rows, boolean infile) {
+        loader.connector().run(conn -> {
+            try {
+                createTables(conn);
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+            return "";
+        });
+        List<BulkLoader.Report> reports = new ArrayList<>();
+        reports.add(load(loader, infile, "UserInventory", 2, rows, i -> new Object[]{"user" + i, 0}));
+        reports.add(load(loader, infile, "MonthlyPay", 2, rows, i -> new Object[]{"user" + i, (int) (i % 200)}));
+        reports.add(load(loader, infile, "User", 3, rows, i -> new Object[]{"user" + i, i % 2 == 0, (int) (i % 200)}));
+        reports.add(load(loader, infile, "PurchaseCart", 4, rows,
+                i -> new Object[]{"item" + i, "buyer" + (i / ITEMS_PER_CART), (int) (1 + i % 50), false}));
+        return reports;
+    }
+
+    public static void createSchema(DbConnector connector, int rows) {
+        createSchema(new BulkLoader(connector), rows, false);
+    }
+
+    private static BulkLoader.Report load(BulkLoader loader, boolean infile, String table, int columns, int rows,
+                                          BulkLoader.RowGenerator generator) {
+        return infile ? loader.loadInfile(table, rows, generator) : loader.load(table, columns, rows, generator);
+    }
+
+    public static int buyers(int rows) {
+        return Math.max(1, rows / ITEMS_PER_CART);
+    }
+
+    /**
+     * M1: the atomic giveaway campaign for two users.
+     */
+    public static void giveaway(Connection conn, String isolationLevel, String user1, String user2) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            st.execute("SET TRANSACTION ISOLATION LEVEL " + isolationLevel);
+            st.execute("START TRANSACTION");
+            DbConnector.prepare(conn, "UPDATE UserInventory SET gbCount = gbCount + ? WHERE username=?", 10, user1).executeUpdate();
+            DbConnector.prepare(conn, "UPDATE UserInventory SET gbCount = gbCount + ? WHERE username=?", 10, user2).executeUpdate();
+            st.execute("COMMIT");
+        }
+    }
+
+    /**
+     * M2: a raise that gets rolled back.
+     */
+    public static void giveMoreMoneyAndRollback(Connection conn, String username) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            st.execute("START TRANSACTION");
+            DbConnector.prepare(conn, "UPDATE MonthlyPay SET paycheck = paycheck + ? WHERE username=?", 100, username).executeUpdate();
+            st.execute("ROLLBACK");
+        }
+    }
+
+    /**
+     * M2: the tax report over everybody. REPLACE instead of INSERT so it can run more than once.
+     */
+    public static void taxTheRich(Connection conn, String isolationLevel) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            st.execute("SET TRANSACTION ISOLATION LEVEL " + isolationLevel);
+            st.execute("START TRANSACTION");
+            st.execute("REPLACE INTO TaxReport SELECT username, paycheck>=100 FROM MonthlyPay");
+            st.execute("COMMIT");
+        }
+    }
+
+    /**
+     * M3: moves a user to the other side of the EU border.
+     */
+    public static void relocate(Connection conn, String username) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            st.execute("START TRANSACTION");
+            DbConnector.prepare(conn, "UPDATE User SET livesInEurope = NOT livesInEurope WHERE username=?", username).executeUpdate();
+            st.execute("COMMIT");
+        }
+    }
+
+    /**
+     * M3: both leaderboards, returns how many scorers made it on either.
+     */
+    public static int generateLeaderboards(Connection conn, String isolationLevel) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            st.execute("SET TRANSACTION ISOLATION LEVEL " + isolationLevel);
+            st.execute("START TRANSACTION");
+            List<String> europeTopScorers = usernames(st, "SELECT username FROM User WHERE livesInEurope=true AND points >= 100");
+            replaceLeaderboard(conn, "EU", europeTopScorers);
+            List<String> worldTopScorers = usernames(st, "SELECT username FROM User WHERE livesInEurope=false AND points >= 100");
+            replaceLeaderboard(conn, "NON_EU", worldTopScorers);
+            st.execute("COMMIT");
+            return europeTopScorers.size() + worldTopScorers.size();
+        }
+    }
+
+    /**
+     * M4: taxes every item in the buyer's cart and returns the total to charge.
+     */
+    public static int taxPayAndShip(Connection conn, String isolationLevel, String buyer) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            st.execute("SET TRANSACTION ISOLATION LEVEL " + isolationLevel);
+            st.execute("START TRANSACTION");
+            List<String> items = new ArrayList<>();
+            try (ResultSet rs = DbConnector.prepare(conn, "SELECT item, price FROM PurchaseCart WHERE buyer=?", buyer).executeQuery()) {
+                while (rs.next()) {
+                    items.add(rs.getString("item"));
+                }
+            }
+            DbConnector.prepare(conn, "UPDATE PurchaseCart SET price = price + 1, taxApplied=true WHERE buyer=?", buyer).executeUpdate();
+            int cartPrice = 0;
+            try (ResultSet rs = DbConnector.prepare(conn, "SELECT price FROM PurchaseCart WHERE buyer=?", buyer).executeQuery()) {
+                while (rs.next()) {
+                    cartPrice += rs.getInt("price");
+                }
+            }
+            st.execute("COMMIT");
+            return cartPrice;
+        }
+    }
+
+    /**
+     * M4: adds an item to the buyer's cart.
+     */
+    public static void addToCart(Connection conn, String item, String buyer, int price) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            st.execute("START TRANSACTION");
+            DbConnector.prepare(conn, "INSERT INTO PurchaseCart VALUES (?, ?, ?, false)", item, buyer, price).executeUpdate();
+            st.execute("COMMIT");
+        }
+    }
+
+    /**
+     * The numbers a dashboard would show: coins handed out, rich people on the tax report, money sitting in carts.
+     * Unlike the others this is the body of a transaction, not one: it's a report that can be a moment out of date,
+     * run it with 'DbConnector.readOnly', which opens it READ ONLY and may send it to a replica.
+     */
+    public static String report(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            return "gbCount=" + number(st, "SELECT SUM(gbCount) FROM UserInventory")
+                    + " rich=" + number(st, "SELECT COUNT(*) FROM TaxReport WHERE isRich=true")
+                    + " inCarts=" + number(st, "SELECT SUM(price) FROM PurchaseCart");
+        }
+    }
+
+    private static List<String> usernames(Statement st, String query) throws SQLException {
+        List<String> ret = new ArrayList<>();
+        try (ResultSet rs = st.executeQuery(query)) {
+            while (rs.next()) {
+                ret.add(rs.getString("username"));
+            }
+        }
+        return ret;
+    }
+
+    private static long number(Statement st, String query) throws SQLException {
+        try (ResultSet rs = st.executeQuery(query)) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    private static void replaceLeaderboard(Connection conn, String name, List<String> scorers) throws SQLException {
+        DbConnector.prepare(conn, "REPLACE INTO Leaderboards VALUES(?, ?)", name, scorers.toString()).executeUpdate();
+    }
+}
@@ -0,0 +1,581 @@
+package workshop_tnx_isolation.engine;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Reads a {@link HistoryRecorder} log and proves (or disproves) isolation anomalies, Adya style.
+ * * *
+ * Every committed transaction is a node. Edges say "had to come before":
+ * * ww : T1 wrote a version of a row, T2 wrote the next one.
+ * * wr : T2 read the version T1 wrote.
+ * * rw : T1 read a version, T2 wrote the next one (T1 didn't see T2's write, so T1 comes first). The anti-dependency.
+ * A serial execution means no cycles. The cycles that show up name the anomaly:
+ * * G0  : a cycle of ww edges only. (dirty writes)
+ * * G1c : a cycle of ww and wr edges. (circular information flow)
+ * * G2  : a cycle with at least one rw edge. (fuzzy reads, phantoms, write skew)
+ * Committed transactions that read something an aborted one wrote are G1a (aborted reads, what M2 shows).
+ * * *
+ * Reads done through a WHERE clause are recorded as reads of the rows they returned, so G2 here is G2-item:
+ * a phantom only shows up once some row it depends on was actually read.
+ * * *
+ * Built for big histories: everything lives in primitive arrays, edges are packed in longs and sorted with
+ * Arrays.parallelSort into a CSR adjacency, edge generation runs in parallel chunks, cycles are found with an iterative
+ * Tarjan (no recursion, so no stack overflow on long dependency chains).
+ */
+public class HistoryChecker {
+    static final int WW = 0;
+    static final int WR = 1;
+    static final int RW = 2;
+    private static final String[] EDGE_NAMES = {"ww", "wr", "rw"};
+    private static final int CHUNK = 1 << 16;
+    private static final int MAX_WITNESSES = 5;
+
+    public record Anomaly(String kind, String cycle) {
+    }
+
+    public record Report(long operations, int committed, int aborted, long edges, long abortedReads,
+                         Map<String, Long> cycles, List<Anomaly> witnesses) {
+        public boolean isSerializable() {
+            return abortedReads == 0 && cycles.values().stream().allMatch(c -> c == 0);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder ret = new StringBuilder();
+            ret.append("operations=").append(operations).append(" committed=").append(committed)
+                    .append(" aborted=").append(aborted).append(" edges=").append(edges).append('\n');
+            ret.append("  G1a (aborted reads): ").append(abortedReads).append('\n');
+            cycles.forEach((kind, count) -> ret.append("  ").append(kind).append(" cycles: ").append(count).append('\n'));
+            for (Anomaly a : witnesses) {
+                ret.append("  ").append(a.kind()).append(": ").append(a.cycle()).append('\n');
+            }
+            ret.append(isSerializable() ? "  serializable" : "  NOT serializable").append('\n');
+            return ret.toString();
+        }
+    }
+
+    /**
+     * The raw log, one array slot per operation.
+     */
+    private static final class History {
+        final LongIntMap txnIndex = new LongIntMap();
+        final LongBuffer txnIds = new LongBuffer();
+        final LongBuffer commitTs = new LongBuffer(); // 0 still running when the log ended, -1 aborted
+        final IntBuffer readTxn = new IntBuffer();
+        final IntBuffer readKey = new IntBuffer();
+        final LongBuffer readWriter = new LongBuffer();
+        final IntBuffer writeTxn = new IntBuffer();
+        final IntBuffer writeKey = new IntBuffer();
+        final List<String> keyNames = new ArrayList<>();
+        long operations;
+
+        int txn(long id) {
+            int i = txnIndex.get(id);
+            if (i < 0) {
+                i = txnIds.size();
+                txnIndex.put(id, i);
+                txnIds.add(id);
+                commitTs.add(0);
+            }
+            return i;
+        }
+    }
+
+    /**
+     * Committed transactions numbered in commit order, with the dependency edges between them.
+     */
+    private static final class Graph {
+        final int nodes;
+        final long[] nodeTxnIds;
+        final int[] offsets;
+        final int[] targets;
+        final byte[] types;
+
+        Graph(long[] nodeTxnIds, long[] packedEdges, int edgeCount) {
+            this.nodes = nodeTxnIds.length;
+            this.nodeTxnIds = nodeTxnIds;
+            this.offsets = new int[nodes + 1];
+            this.targets = new int[edgeCount];
+            this.types = new byte[edgeCount];
+            for (int i = 0; i < edgeCount; i++) {
+                offsets[source(packedEdges[i]) + 1]++;
+                targets[i] = target(packedEdges[i]);
+                types[i] = (byte) type(packedEdges[i]);
+            }
+            for (int i = 0; i < nodes; i++) {
+                offsets[i + 1] += offsets[i];
+            }
+        }
+    }
+
+    public static Report check(Path log) {
+        return analyze(load(log));
+    }
+
+    private static History load(Path log) {
+        History h = new History();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(log), 1 << 16))) {
+            int type;
+            while ((type = in.read()) >= 0) {
+                switch (type) {
+                    case HistoryRecorder.KEY -> {
+                        int id = in.readInt();
+                        String name = in.readUTF();
+                        while (h.keyNames.size() <= id) {
+                            h.keyNames.add(null);
+                        }
+                        h.keyNames.set(id, name);
+                        continue;
+                    }
+                    case HistoryRecorder.BEGIN -> h.txn(in.readLong());
+                    case HistoryRecorder.READ -> {
+                        h.readTxn.add(h.txn(in.readLong()));
+                        h.readKey.add(in.readInt());
+                        h.readWriter.add(in.readLong());
+                    }
+                    case HistoryRecorder.WRITE -> {
+                        h.writeTxn.add(h.txn(in.readLong()));
+                        h.writeKey.add(in.readInt());
+                    }
+                    case HistoryRecorder.COMMIT -> {
+                        int txn = h.txn(in.readLong());
+                        h.commitTs.set(txn, in.readLong());
+                    }
+                    case HistoryRecorder.ABORT -> h.commitTs.set(h.txn(in.readLong()), MvccStore.ABORTED);
+                    default -> throw new IllegalStateException("Corrupt history, unknown record type " + type
+                            + " after " + h.operations + " operations");
+                }
+                h.operations++;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return h;
+    }
+
+    private static Report analyze(History h) {
+        int txns = h.txnIds.size();
+
+        // Number the committed transactions in commit order.
+        int aborted = 0;
+        LongBuffer committed = new LongBuffer();
+        for (int i = 0; i < txns; i++) {
+            long ts = h.commitTs.get(i);
+            if (ts > 0) {
+                committed.add(ts << 32 | i);
+            } else if (ts == MvccStore.ABORTED) {
+                aborted++;
+            }
+        }
+        long[] byCommit = committed.toArray();
+        Arrays.parallelSort(byCommit);
+        if (byCommit.length >= 1 << 30) {
+            throw new IllegalStateException("Too many transactions for one check: " + byCommit.length);
+        }
+        int[] rank = new int[txns];
+        Arrays.fill(rank, -1);
+        long[] nodeTxnIds = new long[byCommit.length];
+        for (int r = 0; r < byCommit.length; r++) {
+            int txn = (int) byCommit[r];
+            rank[txn] = r;
+            nodeTxnIds[r] = h.txnIds.get(txn);
+        }
+
+        // Version order of every row: its committed writers sorted by commit order, grouped by key.
+        int keys = h.keyNames.size();
+        LongBuffer versions = new LongBuffer();
+        for (int i = 0; i < h.writeTxn.size(); i++) {
+            int r = rank[h.writeTxn.get(i)];
+            if (r >= 0) {
+                keys = Math.max(keys, h.writeKey.get(i) + 1);
+                versions.add((long) h.writeKey.get(i) << 32 | r);
+            }
+        }
+        long[] versionOrder = versions.toArray();
+        Arrays.parallelSort(versionOrder);
+        int versionCount = dedupe(versionOrder, versionOrder.length);
+        int[] keyStart = new int[keys + 1];
+        int[] writers = new int[versionCount];
+        for (int i = 0; i < versionCount; i++) {
+            keyStart[(int) (versionOrder[i] >>> 32) + 1]++;
+            writers[i] = (int) versionOrder[i];
+        }
+        for (int k = 0; k < keys; k++) {
+            keyStart[k + 1] += keyStart[k];
+        }
+        int keyCount = keys;
+
+        // Edges, generated in parallel chunks.
+        int wwChunks = (keyCount + CHUNK - 1) / CHUNK;
+        int readChunks = (h.readTxn.size() + CHUNK - 1) / CHUNK;
+        long[] abortedReads = new long[readChunks];
+        List<LongBuffer> chunks = IntStream.range(0, wwChunks + readChunks).parallel().mapToObj(c -> {
+            LongBuffer edges = new LongBuffer();
+            if (c < wwChunks) {
+                for (int k = c * CHUNK; k < Math.min(keyCount, (c + 1) * CHUNK); k++) {
+                    for (int i = keyStart[k]; i + 1 < keyStart[k + 1]; i++) {
+                        edges.add(edge(writers[i], writers[i + 1], WW));
+                    }
+                }
+                return edges;
+            }
+            int chunk = c - wwChunks;
+            for (int i = chunk * CHUNK; i < Math.min(h.readTxn.size(), (chunk + 1) * CHUNK); i++) {
+                int reader = rank[h.readTxn.get(i)];
+                if (reader < 0) {
+                    continue;
+                }
+                long writerId = h.readWriter.get(i);
+                int writer = writerId == 0 ? -1 : h.txnIndex.get(writerId);
+                if (writer >= 0 && h.commitTs.get(writer) == MvccStore.ABORTED) {
+                    abortedReads[chunk]++;
+                    continue;
+                }
+                int writerRank = writer >= 0 ? rank[writer] : -1;
+                if (writer >= 0 && writerRank < 0) {
+                    continue; // the writer never finished in this log
+                }
+                int key = h.readKey.get(i);
+                int from = key < keyCount ? keyStart[key] : 0;
+                int to = key < keyCount ? keyStart[key + 1] : 0;
+                int next = from;
+                if (writerRank >= 0) {
+                    if (writerRank != reader) {
+                        edges.add(edge(writerRank, reader, WR));
+                    }
+                    int found = Arrays.binarySearch(writers, from, to, writerRank);
+                    next = found >= 0 ? found + 1 : -found - 1;
+                }
+                if (next < to && writers[next] != reader) {
+                    edges.add(edge(reader, writers[next], RW));
+                }
+            }
+            return edges;
+        }).toList();
+
+        long total = 0;
+        for (LongBuffer b : chunks) {
+            total += b.size();
+        }
+        if (total > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Too many dependencies for one check: " + total);
+        }
+        long[] packed = new long[(int) total];
+        int pos = 0;
+        for (LongBuffer b : chunks) {
+            System.arraycopy(b.array(), 0, packed, pos, b.size());
+            pos += b.size();
+        }
+        Arrays.parallelSort(packed);
+        int edgeCount = dedupe(packed, packed.length);
+        Graph g = new Graph(nodeTxnIds, packed, edgeCount);
+
+        Map<String, Long> cycles = new LinkedHashMap<>();
+        List<Anomaly> witnesses = new ArrayList<>();
+        findCycles(g, "G0", 1 << WW, WW, cycles, witnesses);
+        findCycles(g, "G1c", 1 << WW | 1 << WR, WR, cycles, witnesses);
+        findCycles(g, "G2", 1 << WW | 1 << WR | 1 << RW, RW, cycles, witnesses);
+
+        return new Report(h.operations, byCommit.length, aborted, edgeCount, Arrays.stream(abortedReads).sum(),
+                cycles, witnesses);
+    }
+
+    /**
+     * Counts the strongly connected components (using only the edge types in 'mask') that contain at least one
+     * edge of type 'required', and spells out a cycle for the first few of them.
+     */
+    private static void findCycles(Graph g, String kind, int mask, int required, Map<String, Long> cycles, List<Anomaly> witnesses) {
+        int[] comp = components(g, mask);
+        boolean[] flagged = new boolean[g.nodes];
+        int[] parent = new int[g.nodes];
+        Arrays.fill(parent, -1);
+        long count = 0;
+        int shown = 0;
+        for (int u = 0; u < g.nodes; u++) {
+            for (int e = g.offsets[u]; e < g.offsets[u + 1]; e++) {
+                int v = g.targets[e];
+                if (g.types[e] != required || comp[u] != comp[v] || flagged[comp[u]]) {
+                    continue;
+                }
+                flagged[comp[u]] = true;
+                count++;
+                if (shown++ < MAX_WITNESSES) {
+                    witnesses.add(new Anomaly(kind, witness(g, mask, comp, parent, u, v, required)));
+                }
+            }
+        }
+        cycles.put(kind, count);
+    }
+
+    /**
+     * Iterative Tarjan. Returns the component of every node.
+     */
+    private static int[] components(Graph g, int mask) {
+        int n = g.nodes;
+        int[] index = new int[n];
+        int[] low = new int[n];
+        int[] comp = new int[n];
+        boolean[] onStack = new boolean[n];
+        int[] stack = new int[n];
+        int[] callNode = new int[n];
+        int[] callEdge = new int[n];
+        Arrays.fill(index, -1);
+        int sp = 0;
+        int csp = 0;
+        int counter = 0;
+        int comps = 0;
+        for (int s = 0; s < n; s++) {
+            if (index[s] != -1) {
+                continue;
+            }
+            index[s] = low[s] = counter++;
+            stack[sp++] = s;
+            onStack[s] = true;
+            callNode[csp] = s;
+            callEdge[csp++] = g.offsets[s];
+            while (csp > 0) {
+                int v = callNode[csp - 1];
+                int e = callEdge[csp - 1];
+                if (e < g.offsets[v + 1]) {
+                    callEdge[csp - 1] = e + 1;
+                    if ((mask >> g.types[e] & 1) == 0) {
+                        continue;
+                    }
+                    int w = g.targets[e];
+                    if (index[w] == -1) {
+                        index[w] = low[w] = counter++;
+                        stack[sp++] = w;
+                        onStack[w] = true;
+                        callNode[csp] = w;
+                        callEdge[csp++] = g.offsets[w];
+                    } else if (onStack[w]) {
+                        low[v] = Math.min(low[v], index[w]);
+                    }
+                    continue;
+                }
+                csp--;
+                if (low[v] == index[v]) {
+                    int w;
+                    do {
+                        w = stack[--sp];
+                        onStack[w] = false;
+                        comp[w] = comps;
+                    } while (w != v);
+                    comps++;
+                }
+                if (csp > 0) {
+                    int u = callNode[csp - 1];
+                    low[u] = Math.min(low[u], low[v]);
+                }
+            }
+        }
+        return comp;
+    }
+
+    /**
+     * "T3 -rw-> T5 -wr-> T3": the edge u->v plus the shortest way back from v to u inside their component.
+     */
+    private static String witness(Graph g, int mask, int[] comp, int[] parent, int u, int v, int firstType) {
+        int[] queue = new int[16];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = v;
+        parent[v] = v;
+        List<Integer> touched = new ArrayList<>(List.of(v));
+        while (head < tail && parent[u] == -1) {
+            int x = queue[head++];
+            for (int e = g.offsets[x]; e < g.offsets[x + 1]; e++) {
+                int y = g.targets[e];
+                if ((mask >> g.types[e] & 1) == 0 || comp[y] != comp[u] || parent[y] != -1) {
+                    continue;
+                }
+                parent[y] = e;
+                touched.add(y);
+                if (tail == queue.length) {
+                    queue = Arrays.copyOf(queue, tail * 2);
+                }
+                queue[tail++] = y;
+            }
+        }
+        // Walk back from u to v over the recorded edges.
+        List<Integer> path = new ArrayList<>();
+        for (int x = u; x != v; ) {
+            int e = parent[x];
+            path.add(e);
+            x = sourceOf(g, e);
+        }
+        StringBuilder ret = new StringBuilder("T" + g.nodeTxnIds[u] + " -" + EDGE_NAMES[firstType] + "-> T" + g.nodeTxnIds[v]);
+        for (int i = path.size() - 1; i >= 0; i--) {
+            int e = path.get(i);
+            ret.append(" -").append(EDGE_NAMES[g.types[e]]).append("-> T").append(g.nodeTxnIds[g.targets[e]]);
+        }
+        for (int x : touched) {
+            parent[x] = -1;
+        }
+        return ret.toString();
+    }
+
+    private static int sourceOf(Graph g, int edge) {
+        int lo = 0;
+        int hi = g.nodes - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (g.offsets[mid] <= edge) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    private static long edge(int source, int target, int type) {
+        return (long) source << 33 | (long) target << 2 | type;
+    }
+
+    private static int source(long edge) {
+        return (int) (edge >>> 33);
+    }
+
+    private static int target(long edge) {
+        return (int) (edge >>> 2 & 0x7fff_ffffL);
+    }
+
+    private static int type(long edge) {
+        return (int) (edge & 3);
+    }
+
+    /**
+     * Drops duplicates from a sorted array, returns the new length.
+     */
+    private static int dedupe(long[] sorted, int length) {
+        int n = 0;
+        for (int i = 0; i < length; i++) {
+            if (n == 0 || sorted[n - 1] != sorted[i]) {
+                sorted[n++] = sorted[i];
+            }
+        }
+        return n;
+    }
+
+    private static final class IntBuffer {
+        private int[] a = new int[1024];
+        private int size;
+
+        void add(int v) {
+            if (size == a.length) {
+                a = Arrays.copyOf(a, size * 2);
+            }
+            a[size++] = v;
+        }
+
+        int get(int i) {
+            return a[i];
+        }
+
+        int size() {
+            return size;
+        }
+    }
+
+    private static final class LongBuffer {
+        private long[] a = new long[1024];
+        private int size;
+
+        void add(long v) {
+            if (size == a.length) {
+                a = Arrays.copyOf(a, size * 2);
+            }
+            a[size++] = v;
+        }
+
+        long get(int i) {
+            return a[i];
+        }
+
+        void set(int i, long v) {
+            a[i] = v;
+        }
+
+        int size() {
+            return size;
+        }
+
+        long[] array() {
+            return a;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(a, size);
+        }
+    }
+
+    /**
+     * Open addressing long -> int map, so tens of millions of transaction ids don't turn into tens of millions of
+     * boxed Longs. Keys must not be 0.
+     */
+    private static final class LongIntMap {
+        private long[] keys = new long[1024];
+        private int[] values = new int[1024];
+        private int size;
+
+        int get(long key) {
+            int mask = keys.length - 1;
+            for (int i = slot(key, mask); keys[i] != 0; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+            }
+            return -1;
+        }
+
+        void put(long key, int value) {
+            if (size * 2 >= keys.length) {
+                grow();
+            }
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            while (keys[i] != 0 && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (keys[i] == 0) {
+                size++;
+            }
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new int[oldKeys.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static int slot(long key, int mask) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ h >>> 32) & mask;
+        }
+    }
+
+    public static void main(String[] args) {
+        System.out.print(check(Path.of(args[0])));
+    }
+}
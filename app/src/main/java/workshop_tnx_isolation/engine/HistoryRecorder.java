@@ -0,0 +1,136 @@
+package workshop_tnx_isolation.engine;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes down everything the transactions of an {@link MvccStore} do, so {@link HistoryChecker} can tell afterwards
+ * which isolation anomalies actually happened, instead of us squinting at printed tables.
+ * * *
+ * The log is append-only and binary, one small record per operation:
+ * * BEGIN  txn
+ * * READ   txn key writer  (which transaction wrote the version that was read, 0 for rows nobody recorded writing)
+ * * WRITE  txn key
+ * * COMMIT txn commitTs
+ * * ABORT  txn
+ * * KEY    id name         (first time a table/primary key pair shows up, so the other records carry a 4 byte id)
+ * * *
+ * A READ is 21 bytes, so tens of millions of operations are a few hundred MB.
+ * Reading your own writes is not recorded, it doesn't create any dependency between transactions.
+ */
+public class HistoryRecorder implements AutoCloseable {
+    static final byte BEGIN = 1;
+    static final byte READ = 2;
+    static final byte WRITE = 3;
+    static final byte COMMIT = 4;
+    static final byte ABORT = 5;
+    static final byte KEY = 6;
+
+    private final Path file;
+    private final DataOutputStream out;
+    private final Map<String, Integer> keys = new HashMap<>();
+    private long operations;
+
+    public HistoryRecorder(Path file) {
+        this.file = file;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE), 1 << 16));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    synchronized void begin(long txn) {
+        try {
+            out.writeByte(BEGIN);
+            out.writeLong(txn);
+            operations++;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    synchronized void read(long txn, String table, String key, long writer) {
+        try {
+            int id = keyId(table, key);
+            out.writeByte(READ);
+            out.writeLong(txn);
+            out.writeInt(id);
+            out.writeLong(writer);
+            operations++;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    synchronized void write(long txn, String table, String key) {
+        try {
+            int id = keyId(table, key);
+            out.writeByte(WRITE);
+            out.writeLong(txn);
+            out.writeInt(id);
+            operations++;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    synchronized void commit(long txn, long commitTs) {
+        try {
+            out.writeByte(COMMIT);
+            out.writeLong(txn);
+            out.writeLong(commitTs);
+            operations++;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    synchronized void abort(long txn) {
+        try {
+            out.writeByte(ABORT);
+            out.writeLong(txn);
+            operations++;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public Path file() {
+        return file;
+    }
+
+    public synchronized long operations() {
+        return operations;
+    }
+
+    private int keyId(String table, String key) throws IOException {
+        String name = table + "/" + key;
+        Integer id = keys.get(name);
+        if (id == null) {
+            id = keys.size();
+            keys.put(name, id);
+            out.writeByte(KEY);
+            out.writeInt(id);
+            out.writeUTF(name);
+        }
+        return id;
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
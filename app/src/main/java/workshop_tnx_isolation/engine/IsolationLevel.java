@@ -0,0 +1,51 @@
+package workshop_tnx_isolation.engine;
+
+import java.sql.Connection;
+
+/**
+ * The four isolation levels the workshop walks through, from weakest to strongest.
+ */
+public enum IsolationLevel {
+    READ_UNCOMMITTED("READ UNCOMMITTED", Connection.TRANSACTION_READ_UNCOMMITTED),
+    READ_COMMITTED("READ COMMITTED", Connection.TRANSACTION_READ_COMMITTED),
+    REPEATABLE_READ("REPEATABLE READ", Connection.TRANSACTION_REPEATABLE_READ),
+    SERIALIZABLE("SERIALIZABLE", Connection.TRANSACTION_SERIALIZABLE);
+
+    private final String sql;
+    private final int jdbcLevel;
+
+    IsolationLevel(String sql, int jdbcLevel) {
+        this.sql = sql;
+        this.jdbcLevel = jdbcLevel;
+    }
+
+    /**
+     * The name as written in 'SET TRANSACTION ISOLATION LEVEL ...'
+     */
+    public String sql() {
+        return sql;
+    }
+
+    public int jdbcLevel() {
+        return jdbcLevel;
+    }
+
+    public static IsolationLevel fromSql(String level) {
+        String normalized = level.trim().replace('_', ' ').replace('-', ' ');
+        for (IsolationLevel l : values()) {
+            if (l.sql.equalsIgnoreCase(normalized)) {
+                return l;
+            }
+        }
+        throw new IllegalArgumentException("Unknown isolation level " + level);
+    }
+
+    public static IsolationLevel fromJdbc(int jdbcLevel) {
+        for (IsolationLevel l : values()) {
+            if (l.jdbcLevel == jdbcLevel) {
+                return l;
+            }
+        }
+        throw new IllegalArgumentException("Unknown JDBC isolation level " + jdbcLevel);
+    }
+}
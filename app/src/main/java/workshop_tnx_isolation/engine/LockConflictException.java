@@ -0,0 +1,14 @@
+package workshop_tnx_isolation.engine;
+
+/**
+ * Thrown by the lock managers when a lock can't be granted: lock wait timeout, or deadlock.
+ * Unlike TransactionConflictException nothing has been rolled back yet, the transaction still holds every lock it
+ * already had. The caller must roll it back and call 'releaseAll' before retrying.
+ */
+public class LockConflictException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public LockConflictException(String message) {
+        super(message);
+    }
+}
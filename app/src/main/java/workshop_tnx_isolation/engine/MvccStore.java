@@ -0,0 +1,243 @@
+package workshop_tnx_isolation.engine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * An in-memory, multi versioned row store. A local stand-in for MySql so the isolation anomalies can be played with
+ * without a docker container.
+ * * *
+ * Every row is a chain of versions, newest first. A version is stamped with the commit timestamp of the transaction
+ * that wrote it (0 while that transaction is still running).
+ * A reader picks the newest version it is allowed to see, which depends on the isolation level:
+ * * READ UNCOMMITTED : the newest version, committed or not. (dirty reads)
+ * * READ COMMITTED   : the newest version committed before the current statement started. (fuzzy reads)
+ * * REPEATABLE READ  : the newest version committed before the transaction started. (snapshot isolation)
+ * * SERIALIZABLE     : same snapshot as REPEATABLE READ, plus a commit time check that nothing the transaction read
+ * (single rows or whole WHERE clauses) was changed by someone else in the meantime.
+ * * *
+ * Reads never take locks, they just walk the version chain.
+ * Writers do not wait either: writing a row that has an uncommitted version from another transaction on top aborts
+ * the writer (first updater wins). Under REPEATABLE READ and SERIALIZABLE writing a row that was committed after our
+ * snapshot was taken also aborts, otherwise we would clobber an update we never saw.
+ * Commits are serialized on a short lock, that's what makes a commit visible to everybody at once.
+ * * *
+ * Give it a {@link HistoryRecorder} and every read, write, commit and abort gets logged for {@link HistoryChecker}.
+ */
+public class MvccStore {
+
+    static final long UNCOMMITTED = 0;
+    static final long ABORTED = -1;
+
+    static final class Version {
+        final Map<String, Object> row; // null means the row was deleted
+        final long txnId;
+        volatile Version previous;
+        volatile long commitTs = UNCOMMITTED;
+
+        Version(Map<String, Object> row, long txnId, Version previous) {
+            this.row = row;
+            this.txnId = txnId;
+            this.previous = previous;
+        }
+
+        void pruneOlder() {
+            previous = null;
+        }
+    }
+
+    static final class VersionChain {
+        final AtomicReference<Version> head = new AtomicReference<>();
+    }
+
+    static final class Table {
+        final String name;
+        final ConcurrentSkipListMap<String, VersionChain> rows = new ConcurrentSkipListMap<>();
+
+        Table(String name) {
+            this.name = name;
+        }
+    }
+
+    private final Map<String, Table> tables = new ConcurrentHashMap<>();
+    private final AtomicLong txnIds = new AtomicLong();
+    // Highest commit timestamp that is fully visible. Snapshots are taken from here.
+    private final AtomicLong clock = new AtomicLong();
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private final Map<Long, Transaction> active = new ConcurrentHashMap<>();
+    private volatile HistoryRecorder history;
+
+    public void createTable(String name) {
+        if (tables.putIfAbsent(name, new Table(name)) != null) {
+            throw new IllegalStateException("Table '" + name + "' already exists");
+        }
+    }
+
+    public void dropTableIfExists(String name) {
+        tables.remove(name);
+    }
+
+    /**
+     * Starts logging every transaction that begins from now on. Pass null to stop.
+     */
+    public void recordHistory(HistoryRecorder recorder) {
+        this.history = recorder;
+    }
+
+    HistoryRecorder history() {
+        return history;
+    }
+
+    public Transaction begin(IsolationLevel isolationLevel) {
+        Transaction txn = new Transaction(this, txnIds.incrementAndGet(), isolationLevel, history);
+        if (txn.history() != null) {
+            txn.history().begin(txn.id());
+        }
+        // Register before taking the snapshot, otherwise a concurrent commit could prune versions we are about to need.
+        active.put(txn.id(), txn);
+        txn.startAt(clock.get());
+        return txn;
+    }
+
+    /**
+     * Runs 'body' in its own transaction and commits it.
+     */
+    public <T> T inTransaction(IsolationLevel isolationLevel, Function<Transaction, T> body) {
+        Transaction txn = begin(isolationLevel);
+        try {
+            T result = body.apply(txn);
+            txn.commit();
+            return result;
+        } finally {
+            if (txn.isActive()) {
+                txn.rollback();
+            }
+        }
+    }
+
+    long now() {
+        return clock.get();
+    }
+
+    Table table(String name) {
+        Table table = tables.get(name);
+        if (table == null) {
+            throw new IllegalArgumentException("Table '" + name + "' doesn't exist");
+        }
+        return table;
+    }
+
+    Collection<Table> tables() {
+        return tables.values();
+    }
+
+    /**
+     * Finds the version 'txn' is allowed to see given the snapshot 'readTs'. Returns null if the row is not visible.
+     */
+    static Version visible(VersionChain chain, Transaction txn, long readTs) {
+        for (Version v = chain.head.get(); v != null; v = v.previous) {
+            long ts = v.commitTs;
+            if (v.txnId == txn.id()) {
+                return ts == ABORTED ? null : v;
+            }
+            if (ts == ABORTED) {
+                continue;
+            }
+            if (txn.isolationLevel() == IsolationLevel.READ_UNCOMMITTED) {
+                return v;
+            }
+            if (ts != UNCOMMITTED && ts <= readTs) {
+                return v;
+            }
+        }
+        return null;
+    }
+
+    static Version latestCommitted(VersionChain chain) {
+        for (Version v = chain.head.get(); v != null; v = v.previous) {
+            if (v.commitTs > 0) {
+                return v;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Makes all of 'txn' writes visible at once. Called with the SERIALIZABLE validation already done.
+     */
+    void commit(Transaction txn, List<Version> writes, Runnable validation) {
+        commitLock.lock();
+        try {
+            validation.run();
+            long ts = clock.get() + 1;
+            for (Version v : writes) {
+                v.commitTs = ts;
+            }
+            clock.set(ts);
+            if (txn.history() != null) {
+                txn.history().commit(txn.id(), ts);
+            }
+        } finally {
+            commitLock.unlock();
+            active.remove(txn.id());
+        }
+        prune(writes);
+    }
+
+    void rollback(Transaction txn, List<VersionChain> chains, List<Version> writes) {
+        for (int i = 0; i < writes.size(); i++) {
+            Version v = writes.get(i);
+            // Unlink first, then mark it aborted. While it is the head and uncommitted every other writer backs off,
+            // so the head is still ours. Marked first, a writer could see an ABORTED head, take it for a committed
+            // one and stack its own version on top of it, which the unlink below would then leave dangling.
+            chains.get(i).head.compareAndSet(v, v.previous);
+            v.commitTs = ABORTED;
+        }
+        active.remove(txn.id());
+        if (txn.history() != null) {
+            txn.history().abort(txn.id());
+        }
+    }
+
+    /**
+     * Drops versions nobody can see anymore: anything older than the first version committed before the oldest
+     * snapshot still in use.
+     */
+    private void prune(List<Version> writes) {
+        long oldestSnapshot = clock.get();
+        for (Transaction t : active.values()) {
+            oldestSnapshot = Math.min(oldestSnapshot, t.startTs());
+        }
+        for (Version head : writes) {
+            for (Version v = head; v != null; v = v.previous) {
+                long ts = v.commitTs;
+                if (ts > 0 && ts <= oldestSnapshot) {
+                    v.pruneOlder();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * All committed rows of a table, outside any transaction. Handy for printing.
+     */
+    public List<Map<String, Object>> snapshot(String tableName) {
+        List<Map<String, Object>> ret = new ArrayList<>();
+        for (VersionChain chain : table(tableName).rows.values()) {
+            Version v = latestCommitted(chain);
+            if (v != null && v.row != null) {
+                ret.add(v.row);
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,362 @@
+package workshop_tnx_isolation.engine;
+
+import com.google.common.collect.BoundType;
+import com.google.common.collect.Range;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The "set of currently active WHERE clauses" from the end of M4_RepeatableRead, as an actual lock manager.
+ * One instance guards one index (e.g. PurchaseCart by buyer), K is the type of the indexed column.
+ * * *
+ * A transaction locks the index ranges its WHERE clauses cover:
+ * * SHARED    : I read this range, don't change what's in it. (SELECT under SERIALIZABLE)
+ * * EXCLUSIVE : I change this range, nobody else reads or changes it. (UPDATE / DELETE ... WHERE)
+ * * GAP       : nothing may be inserted in here, everything else is fine. Only inserts conflict with a gap lock,
+ * that's how InnoDB keeps its next-key locks from blocking plain readers.
+ * An insert is checked against every lock covering the new key, whatever its mode. If none is held by somebody else
+ * the insert goes ahead and keeps an exclusive lock on the new key until the transaction ends.
+ * * *
+ * Locks live in an interval tree: a treap ordered by the lower end of the ranges, every node remembering the highest
+ * upper end in its subtree. Finding the k locks that overlap a key or a range is O(log n + k), so inserts don't slow
+ * down with the number of readers, only with the number of readers actually in their way.
+ * * *
+ * There is no deadlock detection, a request that can't be granted within 'lockWaitTimeout' fails, like MySql's
+ * innodb_lock_wait_timeout. All locks are held until 'releaseAll' (strict two phase locking), also the ones of a
+ * transaction whose request just failed: roll it back and release them.
+ */
+public class PredicateLockManager<K extends Comparable<? super K>> {
+
+    public enum Mode {
+        SHARED, EXCLUSIVE, GAP
+    }
+
+    private static final class Node<K extends Comparable<? super K>> {
+        final Range<K> range;
+        final Mode mode;
+        final long txn;
+        final long seq;
+        final int priority = ThreadLocalRandom.current().nextInt();
+        Node<K> left;
+        Node<K> right;
+        Range<K> maxUpper; // the range with the highest upper end in this subtree
+
+        Node(Range<K> range, Mode mode, long txn, long seq) {
+            this.range = range;
+            this.mode = mode;
+            this.txn = txn;
+            this.seq = seq;
+            this.maxUpper = range;
+        }
+    }
+
+    private final long lockWaitTimeoutNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private final Map<Long, List<Node<K>>> held = new HashMap<>();
+    private Node<K> root;
+    private long seq;
+    private int size;
+    private long waits;
+    private long timeouts;
+
+    public PredicateLockManager(Duration lockWaitTimeout) {
+        this.lockWaitTimeoutNanos = lockWaitTimeout.toNanos();
+    }
+
+    /**
+     * Blocks until 'range' can be locked in 'mode' for 'txn', or throws after the lock wait timeout.
+     *
+     * @throws LockConflictException on lock wait timeout, 'txn' keeps the locks it already has
+     */
+    public void lock(long txn, Range<K> range, Mode mode) {
+        lock.lock();
+        try {
+            awaitNoConflict(txn, range, mode, false);
+            add(txn, range, mode);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until no other transaction has a lock (of any kind) covering 'key', then locks 'key' exclusively.
+     * Call it before actually inserting the row.
+     *
+     * @throws LockConflictException on lock wait timeout, 'txn' keeps the locks it already has
+     */
+    public void insert(long txn, K key) {
+        Range<K> point = Range.singleton(key);
+        lock.lock();
+        try {
+            awaitNoConflict(txn, point, Mode.EXCLUSIVE, true);
+            add(txn, point, Mode.EXCLUSIVE);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops every lock 'txn' holds. Call it on commit and on rollback.
+     */
+    public void releaseAll(long txn) {
+        lock.lock();
+        try {
+            List<Node<K>> nodes = held.remove(txn);
+            if (nodes == null) {
+                return;
+            }
+            for (Node<K> n : nodes) {
+                root = remove(root, n);
+                size--;
+            }
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The locks held by other transactions that overlap 'range'. Mostly for printing who is in the way.
+     */
+    public List<String> conflicts(long txn, Range<K> range) {
+        lock.lock();
+        try {
+            List<Node<K>> found = new ArrayList<>();
+            overlapping(root, range, found);
+            List<String> ret = new ArrayList<>();
+            for (Node<K> n : found) {
+                if (n.txn != txn) {
+                    ret.add("txn " + n.txn + " " + n.mode + " " + n.range);
+                }
+            }
+            return ret;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * e.g. "locks=12 waits=3 timeouts=0"
+     */
+    public String stats() {
+        lock.lock();
+        try {
+            return "locks=" + size + " waits=" + waits + " timeouts=" + timeouts;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void awaitNoConflict(long txn, Range<K> range, Mode mode, boolean insert) {
+        long remaining = lockWaitTimeoutNanos;
+        boolean waited = false;
+        List<Node<K>> found = new ArrayList<>();
+        while (true) {
+            found.clear();
+            overlapping(root, range, found);
+            Node<K> blocker = null;
+            for (Node<K> n : found) {
+                if (n.txn != txn && conflicts(mode, n.mode, insert)) {
+                    blocker = n;
+                    break;
+                }
+            }
+            if (blocker == null) {
+                return;
+            }
+            if (!waited) {
+                waited = true;
+                waits++;
+            }
+            if (remaining <= 0) {
+                timeouts++;
+                throw new LockConflictException("Lock wait timeout exceeded: transaction " + txn + " wants "
+                        + (insert ? "to insert " + range : mode + " " + range) + ", transaction " + blocker.txn
+                        + " holds " + blocker.mode + " " + blocker.range);
+            }
+            try {
+                remaining = released.awaitNanos(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private static boolean conflicts(Mode requested, Mode held, boolean insert) {
+        if (insert) {
+            return true;
+        }
+        return switch (requested) {
+            case SHARED -> held == Mode.EXCLUSIVE;
+            case EXCLUSIVE -> held != Mode.GAP;
+            case GAP -> false;
+        };
+    }
+
+    private void add(long txn, Range<K> range, Mode mode) {
+        Node<K> n = new Node<>(range, mode, txn, seq++);
+        root = insert(root, n);
+        size++;
+        held.computeIfAbsent(txn, t -> new ArrayList<>()).add(n);
+    }
+
+    private void overlapping(Node<K> n, Range<K> q, List<Node<K>> out) {
+        // Nothing in this subtree ends after q starts.
+        if (n == null || compare(upper(n.maxUpper), lower(q)) <= 0) {
+            return;
+        }
+        overlapping(n.left, q, out);
+        if (overlaps(n.range, q)) {
+            out.add(n);
+        }
+        // Everything on the right starts at or after n, if n starts after q ends so do they.
+        if (compare(lower(n.range), upper(q)) < 0) {
+            overlapping(n.right, q, out);
+        }
+    }
+
+    private Node<K> insert(Node<K> t, Node<K> n) {
+        if (t == null) {
+            return n;
+        }
+        if (order(n, t) < 0) {
+            t.left = insert(t.left, n);
+            if (t.left.priority > t.priority) {
+                t = rotateRight(t);
+            }
+        } else {
+            t.right = insert(t.right, n);
+            if (t.right.priority > t.priority) {
+                t = rotateLeft(t);
+            }
+        }
+        update(t);
+        return t;
+    }
+
+    private Node<K> remove(Node<K> t, Node<K> n) {
+        if (t == null) {
+            return null;
+        }
+        if (t == n) {
+            return merge(t.left, t.right);
+        }
+        if (order(n, t) < 0) {
+            t.left = remove(t.left, n);
+        } else {
+            t.right = remove(t.right, n);
+        }
+        update(t);
+        return t;
+    }
+
+    private Node<K> merge(Node<K> a, Node<K> b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        if (a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            update(a);
+            return a;
+        }
+        b.left = merge(a, b.left);
+        update(b);
+        return b;
+    }
+
+    private Node<K> rotateRight(Node<K> t) {
+        Node<K> l = t.left;
+        t.left = l.right;
+        l.right = t;
+        update(t);
+        update(l);
+        return l;
+    }
+
+    private Node<K> rotateLeft(Node<K> t) {
+        Node<K> r = t.right;
+        t.right = r.left;
+        r.left = t;
+        update(t);
+        update(r);
+        return r;
+    }
+
+    private void update(Node<K> n) {
+        Range<K> max = n.range;
+        if (n.left != null && compare(upper(n.left.maxUpper), upper(max)) > 0) {
+            max = n.left.maxUpper;
+        }
+        if (n.right != null && compare(upper(n.right.maxUpper), upper(max)) > 0) {
+            max = n.right.maxUpper;
+        }
+        n.maxUpper = max;
+    }
+
+    private int order(Node<K> a, Node<K> b) {
+        int c = compare(lower(a.range), lower(b.range));
+        return c != 0 ? c : Long.compare(a.seq, b.seq);
+    }
+
+    // A range end sits either just below a key or just above it: [a..b] runs from below(a) to above(b),
+    // (a..b) from above(a) to below(b). Two ranges overlap when each one starts before the other one ends.
+
+    private record Cut<K>(K key, int side) {
+    }
+
+    private static final int BELOW_ALL = -2;
+    private static final int BELOW = -1;
+    private static final int ABOVE = 1;
+    private static final int ABOVE_ALL = 2;
+
+    private static <K extends Comparable<? super K>> Cut<K> lower(Range<K> r) {
+        if (!r.hasLowerBound()) {
+            return new Cut<>(null, BELOW_ALL);
+        }
+        return new Cut<>(r.lowerEndpoint(), r.lowerBoundType() == BoundType.CLOSED ? BELOW : ABOVE);
+    }
+
+    private static <K extends Comparable<? super K>> Cut<K> upper(Range<K> r) {
+        if (!r.hasUpperBound()) {
+            return new Cut<>(null, ABOVE_ALL);
+        }
+        return new Cut<>(r.upperEndpoint(), r.upperBoundType() == BoundType.CLOSED ? ABOVE : BELOW);
+    }
+
+    private static <K extends Comparable<? super K>> int compare(Cut<K> a, Cut<K> b) {
+        if (a.key() == null || b.key() == null) {
+            return Integer.compare(infinity(a), infinity(b));
+        }
+        int c = a.key().compareTo(b.key());
+        return c != 0 ? c : Integer.compare(a.side(), b.side());
+    }
+
+    private static int infinity(Cut<?> c) {
+        return c.key() == null ? c.side() : 0;
+    }
+
+    private static <K extends Comparable<? super K>> boolean overlaps(Range<K> a, Range<K> b) {
+        return compare(lower(a), upper(b)) < 0 && compare(lower(b), upper(a)) < 0;
+    }
+}
@@ -0,0 +1,254 @@
+package workshop_tnx_isolation.engine;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Row locks for strict two phase locking, the "first generations of database systems" way from the end of
+ * M3_ReadCommitted. Every row a transaction reads gets a shared lock, every row it writes an exclusive one, and
+ * nothing is released before the transaction ends.
+ * * *
+ * Modes:
+ * * SHARED    : reading. Any number of transactions can share a row.
+ * * UPDATE    : reading now, writing later. Compatible with SHARED but not with another UPDATE, so two transactions
+ * that both read-then-write a row don't both sit on a shared lock waiting for the other to let go (the classic upgrade
+ * deadlock). Asking for EXCLUSIVE later upgrades it.
+ * * EXCLUSIVE : writing. Nobody else gets in.
+ * Asking for a mode you already have (or a weaker one) is free, asking for a stronger one upgrades.
+ * * *
+ * The lock table is a ConcurrentHashMap. A row nobody holds is locked with a single putIfAbsent, no lock of our own
+ * taken, which is the common case. Rows that are already locked are handled under one of 'stripes' monitors, picked
+ * by hashing the row, so contention on one row doesn't stall the rest of the table.
+ * * *
+ * Before waiting, a transaction records who it waits for and walks the wait-for graph. If the walk comes back to
+ * itself it's a deadlock and this transaction is the victim, same as MySql's 1213. Waiting longer than
+ * 'lockWaitTimeout' fails too (1205). Either way the caller must roll back and call 'releaseAll'.
+ */
+public class RowLockManager {
+
+    public enum Mode {
+        SHARED, UPDATE, EXCLUSIVE;
+
+        boolean compatibleWith(Mode other) {
+            return this == SHARED && other != EXCLUSIVE || this == UPDATE && other == SHARED;
+        }
+
+        Mode max(Mode other) {
+            return compareTo(other) >= 0 ? this : other;
+        }
+    }
+
+    private static final class Entry {
+        // Guarded by the stripe, except for the fast path that publishes a fresh Entry through putIfAbsent.
+        final Map<Long, Mode> holders = new HashMap<>(4);
+        int waiters;
+
+        Entry(long txn, Mode mode) {
+            holders.put(txn, mode);
+        }
+
+        Entry() {
+        }
+    }
+
+    private static final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition changed = lock.newCondition();
+    }
+
+    private final ConcurrentHashMap<Object, Entry> table = new ConcurrentHashMap<>();
+    private final Stripe[] stripes;
+    private final long lockWaitTimeoutNanos;
+    private final Map<Long, List<Object>> held = new ConcurrentHashMap<>();
+    private final Map<Long, Set<Long>> waitsFor = new ConcurrentHashMap<>();
+    private final Object deadlockCheck = new Object();
+
+    private final LongAdder fastAcquires = new LongAdder();
+    private final LongAdder slowAcquires = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder deadlocks = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+
+    public RowLockManager(int stripes, Duration lockWaitTimeout) {
+        int n = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        this.stripes = new Stripe[n];
+        for (int i = 0; i < n; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        this.lockWaitTimeoutNanos = lockWaitTimeout.toNanos();
+    }
+
+    public RowLockManager() {
+        this(64, Duration.ofSeconds(50));
+    }
+
+    /**
+     * Blocks until 'txn' holds 'row' in at least 'mode'.
+     *
+     * @throws LockConflictException on deadlock or lock wait timeout, 'txn' keeps the locks it already has
+     */
+    public void lock(long txn, Object row, Mode mode) {
+        Entry fresh = new Entry(txn, mode);
+        if (table.putIfAbsent(row, fresh) == null) {
+            fastAcquires.increment();
+            heldBy(txn).add(row);
+            return;
+        }
+        slowAcquires.increment();
+        Stripe stripe = stripe(row);
+        stripe.lock.lock();
+        try {
+            long remaining = lockWaitTimeoutNanos;
+            boolean waited = false;
+            while (true) {
+                Entry entry = table.get(row);
+                if (entry == null) {
+                    entry = new Entry();
+                    Entry raced = table.putIfAbsent(row, entry);
+                    if (raced != null) {
+                        entry = raced;
+                    }
+                }
+                Mode mine = entry.holders.get(txn);
+                if (mine != null && mine.compareTo(mode) >= 0) {
+                    return;
+                }
+                Set<Long> blockers = blockers(entry, txn, mode);
+                if (blockers.isEmpty()) {
+                    entry.holders.put(txn, mine == null ? mode : mine.max(mode));
+                    if (mine == null) {
+                        heldBy(txn).add(row);
+                    }
+                    return;
+                }
+                if (!waited) {
+                    waited = true;
+                    waits.increment();
+                }
+                if (remaining <= 0) {
+                    timeouts.increment();
+                    dropIfUnused(row, entry);
+                    throw new LockConflictException("Lock wait timeout exceeded: transaction " + txn
+                            + " waited for " + mode + " on " + row + " held by " + blockers);
+                }
+                if (deadlocked(txn, blockers)) {
+                    deadlocks.increment();
+                    dropIfUnused(row, entry);
+                    throw new LockConflictException("Deadlock found when trying to get " + mode + " lock on "
+                            + row + " for transaction " + txn + ", waiting for " + blockers);
+                }
+                entry.waiters++;
+                try {
+                    remaining = stripe.changed.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                } finally {
+                    entry.waiters--;
+                    waitsFor.remove(txn);
+                }
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Releases every lock of 'txn'. Call it after commit or rollback, never before (that's the "strict" in strict 2PL).
+     */
+    public void releaseAll(long txn) {
+        List<Object> rows = held.remove(txn);
+        if (rows == null) {
+            return;
+        }
+        for (Object row : rows) {
+            Stripe stripe = stripe(row);
+            stripe.lock.lock();
+            try {
+                Entry entry = table.get(row);
+                if (entry == null) {
+                    continue;
+                }
+                entry.holders.remove(txn);
+                if (entry.waiters > 0) {
+                    stripe.changed.signalAll();
+                } else {
+                    dropIfUnused(row, entry);
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * e.g. "fast=9120 slow=880 waits=40 deadlocks=1 timeouts=0 lockedRows=12"
+     */
+    public String stats() {
+        return "fast=" + fastAcquires.sum() + " slow=" + slowAcquires.sum() + " waits=" + waits.sum()
+                + " deadlocks=" + deadlocks.sum() + " timeouts=" + timeouts.sum() + " lockedRows=" + table.size();
+    }
+
+    private void dropIfUnused(Object row, Entry entry) {
+        if (entry.holders.isEmpty() && entry.waiters == 0) {
+            table.remove(row, entry);
+        }
+    }
+
+    private static Set<Long> blockers(Entry entry, long txn, Mode mode) {
+        Set<Long> ret = new HashSet<>();
+        for (Map.Entry<Long, Mode> h : entry.holders.entrySet()) {
+            if (h.getKey() != txn && !mode.compatibleWith(h.getValue())) {
+                ret.add(h.getKey());
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Records that 'txn' waits for 'blockers' and looks for a path from them back to 'txn'.
+     * If there is one, 'txn' doesn't wait (it's the victim) and its edges are removed again.
+     */
+    private boolean deadlocked(long txn, Set<Long> blockers) {
+        synchronized (deadlockCheck) {
+            waitsFor.put(txn, blockers);
+            Deque<Long> todo = new ArrayDeque<>(blockers);
+            Set<Long> seen = new HashSet<>();
+            while (!todo.isEmpty()) {
+                long t = todo.pop();
+                if (t == txn) {
+                    waitsFor.remove(txn);
+                    return true;
+                }
+                if (seen.add(t)) {
+                    Set<Long> next = waitsFor.get(t);
+                    if (next != null) {
+                        todo.addAll(next);
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    private List<Object> heldBy(long txn) {
+        return held.computeIfAbsent(txn, t -> new ArrayList<>());
+    }
+
+    private Stripe stripe(Object row) {
+        int h = row.hashCode();
+        h ^= h >>> 16;
+        return stripes[h & (stripes.length - 1)];
+    }
+}
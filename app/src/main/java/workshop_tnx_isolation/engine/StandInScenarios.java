@@ -0,0 +1,165 @@
+package workshop_tnx_isolation.engine;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static workshop_tnx_isolation.engine.Transaction.row;
+import static workshop_tnx_isolation.engine.Transaction.with;
+
+/**
+ * The M2, M3 and M4 anomalies replayed against the in-memory {@link MvccStore} instead of MySql.
+ * * *
+ * Transactions here are plain objects, so there is no need for threads and SLEEPs to interleave them:
+ * we just call the statements of each transaction in the order that produces the anomaly.
+ * Run it with the weak level and then the strong level and compare, same as the comments in M2-M4 suggest.
+ * Each run is also recorded and checked by {@link HistoryChecker}, which names the anomaly instead of leaving it
+ * to our eyes.
+ */
+public class StandInScenarios {
+
+    /**
+     * M2_ReadUncommitted: 'taxTheRich' reads Dorin's raise before 'giveDorinMoreMoney' rolls it back.
+     */
+    static void dirtyRead(IsolationLevel taxTheRichLevel) {
+        MvccStore db = recordedStore();
+        db.createTable("MonthlyPay");
+        db.createTable("TaxReport");
+        db.inTransaction(IsolationLevel.REPEATABLE_READ, t -> {
+            t.insert("MonthlyPay", "RichieRich", row("username", "RichieRich", "paycheck", 1000));
+            t.insert("MonthlyPay", "RichieNotRich", row("username", "RichieNotRich", "paycheck", 20));
+            t.insert("MonthlyPay", "Dorin", row("username", "Dorin", "paycheck", 0));
+            return null;
+        });
+
+        Transaction giveDorinMoreMoney = db.begin(IsolationLevel.REPEATABLE_READ);
+        Transaction taxTheRich = db.begin(taxTheRichLevel);
+
+        giveDorinMoreMoney.update("MonthlyPay", "Dorin", r -> with(r, "paycheck", (Integer) r.get("paycheck") + 100));
+        for (Map<String, Object> pay : taxTheRich.select("MonthlyPay", r -> true)) {
+            String username = (String) pay.get("username");
+            taxTheRich.insert("TaxReport", username, row("username", username, "isRich", (Integer) pay.get("paycheck") >= 100));
+        }
+        giveDorinMoreMoney.rollback();
+        taxTheRich.commit();
+
+        print("taxTheRich in " + taxTheRichLevel.sql(), db, "MonthlyPay", "TaxReport");
+    }
+
+    /**
+     * M3_ReadCommitted: Dorin relocates between the EU and the NON_EU leaderboard selects.
+     */
+    static void fuzzyRead(IsolationLevel generateLeaderboardsLevel) {
+        MvccStore db = recordedStore();
+        db.createTable("User");
+        db.createTable("Leaderboards");
+        db.inTransaction(IsolationLevel.REPEATABLE_READ, t -> {
+            t.insert("User", "Dorin", row("username", "Dorin", "livesInEurope", true, "points", 100));
+            t.insert("User", "Porin", row("username", "Porin", "livesInEurope", true, "points", 5));
+            t.insert("User", "Xorin", row("username", "Xorin", "livesInEurope", false, "points", 100));
+            t.insert("User", "Borin", row("username", "Borin", "livesInEurope", false, "points", 100));
+            return null;
+        });
+
+        Transaction generateLeaderboards = db.begin(generateLeaderboardsLevel);
+        List<Object> europeTopScorers = usernames(generateLeaderboards.select("User",
+                r -> (Boolean) r.get("livesInEurope") && (Integer) r.get("points") >= 100));
+        generateLeaderboards.insert("Leaderboards", "EU", row("leaderboardName", "EU", "topScorers", europeTopScorers.toString()));
+
+        db.inTransaction(IsolationLevel.REPEATABLE_READ, relocateDorin ->
+                relocateDorin.update("User", "Dorin", r -> with(r, "livesInEurope", false)));
+
+        List<Object> worldTopScorers = usernames(generateLeaderboards.select("User",
+                r -> !(Boolean) r.get("livesInEurope") && (Integer) r.get("points") >= 100));
+        generateLeaderboards.insert("Leaderboards", "NON_EU", row("leaderboardName", "NON_EU", "topScorers", worldTopScorers.toString()));
+        generateLeaderboards.commit();
+
+        print("generateLeaderboards in " + generateLeaderboardsLevel.sql(), db, "Leaderboards", "User");
+    }
+
+    /**
+     * M4_RepeatableRead: a new cart item pops up between 'taxPayAndShip' listing the items and summing up the price.
+     * Careful, this one differs from MySql. Here REPEATABLE READ is pure snapshot isolation (like PostgreSql), the UPDATE
+     * only sees the snapshot so the phantom never shows. MySql's UPDATE reads the newest rows, which is how the
+     * RaspberryPI ends up taxed and charged in M4.
+     * Under SERIALIZABLE the engine notices the WHERE clause was invalidated and aborts 'taxPayAndShip' at commit.
+     */
+    static void phantomRead(IsolationLevel taxPayAndShipLevel) {
+        MvccStore db = recordedStore();
+        db.createTable("PurchaseCart");
+        db.inTransaction(IsolationLevel.REPEATABLE_READ, t -> {
+            t.insert("PurchaseCart", "potatoes", row("item", "potatoes", "buyer", "Dorin", "price", 10, "taxApplied", false));
+            t.insert("PurchaseCart", "bread", row("item", "bread", "buyer", "Dorin", "price", 5, "taxApplied", false));
+            t.insert("PurchaseCart", "12v_Battery", row("item", "12v_Battery", "buyer", "Dorin", "price", 40, "taxApplied", false));
+            return null;
+        });
+
+        Transaction taxPayAndShip = db.begin(taxPayAndShipLevel);
+        List<Map<String, Object>> items = taxPayAndShip.select("PurchaseCart", r -> "Dorin".equals(r.get("buyer")));
+
+        db.inTransaction(IsolationLevel.REPEATABLE_READ, addToCart -> {
+            addToCart.insert("PurchaseCart", "RaspberryPI", row("item", "RaspberryPI", "buyer", "Dorin", "price", 100, "taxApplied", false));
+            return null;
+        });
+
+        try {
+            taxPayAndShip.updateWhere("PurchaseCart", r -> "Dorin".equals(r.get("buyer")),
+                    r -> with(r, "price", (Integer) r.get("price") + 1, "taxApplied", true));
+            int cartPrice = 0;
+            for (Map<String, Object> r : taxPayAndShip.select("PurchaseCart", r -> "Dorin".equals(r.get("buyer")))) {
+                cartPrice += (Integer) r.get("price");
+            }
+            taxPayAndShip.commit();
+            System.out.println("Shipping " + items.size() + " items at price " + cartPrice);
+        } catch (TransactionConflictException e) {
+            System.out.println("taxPayAndShip aborted: " + e.getMessage());
+        }
+
+        print("taxPayAndShip in " + taxPayAndShipLevel.sql(), db, "PurchaseCart");
+    }
+
+    private static List<Object> usernames(List<Map<String, Object>> rows) {
+        List<Object> ret = new ArrayList<>();
+        for (Map<String, Object> r : rows) {
+            ret.add(r.get("username"));
+        }
+        return ret;
+    }
+
+    private static MvccStore recordedStore() {
+        try {
+            MvccStore db = new MvccStore();
+            db.recordHistory(new HistoryRecorder(Files.createTempFile("history", ".bin")));
+            return db;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void print(String title, MvccStore db, String... tables) {
+        System.out.println("==================== " + title);
+        for (String table : tables) {
+            System.out.println(table);
+            for (Map<String, Object> r : db.snapshot(table)) {
+                System.out.println("  " + r.values());
+            }
+        }
+        HistoryRecorder history = db.history();
+        history.close();
+        System.out.print(HistoryChecker.check(history.file()));
+    }
+
+    public static void main(String[] args) {
+        dirtyRead(IsolationLevel.READ_UNCOMMITTED);
+        dirtyRead(IsolationLevel.READ_COMMITTED);
+
+        fuzzyRead(IsolationLevel.READ_COMMITTED);
+        fuzzyRead(IsolationLevel.REPEATABLE_READ);
+
+        phantomRead(IsolationLevel.REPEATABLE_READ);
+        phantomRead(IsolationLevel.SERIALIZABLE);
+    }
+}
@@ -0,0 +1,317 @@
+package workshop_tnx_isolation.engine;
+
+import workshop_tnx_isolation.engine.MvccStore.Table;
+import workshop_tnx_isolation.engine.MvccStore.Version;
+import workshop_tnx_isolation.engine.MvccStore.VersionChain;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * A transaction against an {@link MvccStore}. Not thread safe, a transaction belongs to the thread running it,
+ * same as a JDBC connection.
+ * Rows are plain column-name to value maps, keyed by their primary key.
+ */
+public class Transaction {
+
+    private record RowRef(Table table, String key) {
+    }
+
+    private record ScanRef(Table table, Predicate<Map<String, Object>> where) {
+    }
+
+    private final MvccStore store;
+    private final long id;
+    private final IsolationLevel isolationLevel;
+    private final HistoryRecorder history;
+    private volatile long startTs;
+    private boolean active = true;
+
+    // Our own uncommitted versions, in write order.
+    private final List<VersionChain> writtenChains = new ArrayList<>();
+    private final List<Version> writes = new ArrayList<>();
+    private final Map<VersionChain, Integer> writeIndex = new IdentityHashMap<>();
+    // Only tracked for SERIALIZABLE: what we read, checked again at commit time.
+    private final Set<RowRef> reads = new HashSet<>();
+    private final List<ScanRef> scans = new ArrayList<>();
+
+    Transaction(MvccStore store, long id, IsolationLevel isolationLevel, HistoryRecorder history) {
+        this.store = store;
+        this.id = id;
+        this.isolationLevel = isolationLevel;
+        this.history = history;
+    }
+
+    void startAt(long ts) {
+        this.startTs = ts;
+    }
+
+    public long id() {
+        return id;
+    }
+
+    public IsolationLevel isolationLevel() {
+        return isolationLevel;
+    }
+
+    long startTs() {
+        return startTs;
+    }
+
+    HistoryRecorder history() {
+        return history;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    public Map<String, Object> get(String tableName, String key) {
+        checkActive();
+        Table table = store.table(tableName);
+        VersionChain chain = table.rows.get(key);
+        Version v = chain == null ? null : MvccStore.visible(chain, this, readTs());
+        if (isolationLevel == IsolationLevel.SERIALIZABLE) {
+            reads.add(new RowRef(table, key));
+        }
+        recordRead(table, key, v);
+        return v == null ? null : v.row;
+    }
+
+    /**
+     * All visible rows matching 'where', in primary key order. Think 'SELECT * FROM table WHERE ...'.
+     */
+    public List<Map<String, Object>> select(String tableName, Predicate<Map<String, Object>> where) {
+        return new ArrayList<>(scan(tableName, where).values());
+    }
+
+    public void insert(String tableName, String key, Map<String, Object> row) {
+        checkActive();
+        Table table = store.table(tableName);
+        VersionChain chain = table.rows.computeIfAbsent(key, k -> new VersionChain());
+        write(table, key, chain, current -> {
+            if (current != null) {
+                throw new IllegalArgumentException("Duplicate entry '" + key + "' for key '" + table.name + ".PRIMARY'");
+            }
+            return row;
+        });
+    }
+
+    /**
+     * Applies 'change' on the newest version of the row, returns false if there is no such row.
+     */
+    public boolean update(String tableName, String key, UnaryOperator<Map<String, Object>> change) {
+        checkActive();
+        Table table = store.table(tableName);
+        VersionChain chain = table.rows.get(key);
+        if (chain == null) {
+            return false;
+        }
+        boolean[] found = {false};
+        write(table, key, chain, current -> {
+            if (current == null) {
+                return null;
+            }
+            found[0] = true;
+            return change.apply(current);
+        });
+        return found[0];
+    }
+
+    /**
+     * Think 'UPDATE table SET ... WHERE ...'. Returns the number of rows changed.
+     */
+    public int updateWhere(String tableName, Predicate<Map<String, Object>> where, UnaryOperator<Map<String, Object>> change) {
+        int count = 0;
+        for (String key : scan(tableName, where).keySet()) {
+            if (update(tableName, key, current -> where.test(current) ? change.apply(current) : current)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public boolean delete(String tableName, String key) {
+        checkActive();
+        Table table = store.table(tableName);
+        VersionChain chain = table.rows.get(key);
+        if (chain == null) {
+            return false;
+        }
+        boolean[] found = {false};
+        write(table, key, chain, current -> {
+            found[0] = current != null;
+            return null;
+        });
+        return found[0];
+    }
+
+    public void commit() {
+        checkActive();
+        try {
+            store.commit(this, writes, this::validateReads);
+            active = false;
+        } catch (RuntimeException e) {
+            rollback();
+            throw e;
+        }
+    }
+
+    public void rollback() {
+        if (!active) {
+            return;
+        }
+        active = false;
+        store.rollback(this, writtenChains, writes);
+    }
+
+    /**
+     * Builds a row keeping the column order, e.g. row("username", "Dorin", "points", 100)
+     */
+    public static Map<String, Object> row(Object... columnsAndValues) {
+        Map<String, Object> row = new LinkedHashMap<>();
+        for (int i = 0; i < columnsAndValues.length; i += 2) {
+            row.put((String) columnsAndValues[i], columnsAndValues[i + 1]);
+        }
+        return Collections.unmodifiableMap(row);
+    }
+
+    /**
+     * Copy of 'row' with a few columns changed.
+     */
+    public static Map<String, Object> with(Map<String, Object> row, Object... columnsAndValues) {
+        Map<String, Object> copy = new LinkedHashMap<>(row);
+        for (int i = 0; i < columnsAndValues.length; i += 2) {
+            copy.put((String) columnsAndValues[i], columnsAndValues[i + 1]);
+        }
+        return Collections.unmodifiableMap(copy);
+    }
+
+    private long readTs() {
+        // READ COMMITTED takes a fresh snapshot for every statement, the others stick to the one from the start.
+        return isolationLevel == IsolationLevel.READ_COMMITTED || isolationLevel == IsolationLevel.READ_UNCOMMITTED
+                ? store.now()
+                : startTs;
+    }
+
+    private void write(Table table, String key, VersionChain chain, UnaryOperator<Map<String, Object>> change) {
+        while (true) {
+            Version head = chain.head.get();
+            if (head != null && head.txnId == id) {
+                // Overwriting our own version, nobody else can see it (except dirty readers) so just swap it.
+                Map<String, Object> row = change.apply(head.row);
+                Version mine = new Version(row, id, head.previous);
+                if (chain.head.compareAndSet(head, mine)) {
+                    writes.set(writeIndex.get(chain), mine);
+                    return;
+                }
+                continue;
+            }
+            if (head != null && head.commitTs == MvccStore.UNCOMMITTED) {
+                rollback();
+                throw new TransactionConflictException("Row '" + key + "' in '" + table.name
+                        + "' is being written by transaction " + head.txnId);
+            }
+            if (head != null && head.commitTs > startTs
+                    && (isolationLevel == IsolationLevel.REPEATABLE_READ || isolationLevel == IsolationLevel.SERIALIZABLE)) {
+                rollback();
+                throw new TransactionConflictException("Row '" + key + "' in '" + table.name
+                        + "' was changed after transaction " + id + " started");
+            }
+            Map<String, Object> current = head == null ? null : head.row;
+            Map<String, Object> row = change.apply(current);
+            if (row == null && current == null) {
+                return; // deleting something that's not there
+            }
+            Version mine = new Version(row, id, head);
+            if (chain.head.compareAndSet(head, mine)) {
+                writeIndex.put(chain, writes.size());
+                writtenChains.add(chain);
+                writes.add(mine);
+                if (history != null) {
+                    // An UPDATE reads the row it changes.
+                    recordRead(table, key, head);
+                    history.write(id, table.name, key);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * SERIALIZABLE only: if anything we read, or anything matching a WHERE clause we ran, got committed by somebody
+     * else after our snapshot, some serial order would have shown us different data. Abort.
+     */
+    private void validateReads() {
+        if (isolationLevel != IsolationLevel.SERIALIZABLE) {
+            return;
+        }
+        for (RowRef read : reads) {
+            VersionChain chain = read.table().rows.get(read.key());
+            if (chain != null && changedSinceStart(chain)) {
+                throw new TransactionConflictException("Row '" + read.key() + "' read by transaction " + id
+                        + " was changed concurrently");
+            }
+        }
+        for (ScanRef scan : scans) {
+            for (VersionChain chain : scan.table().rows.values()) {
+                if (!changedSinceStart(chain)) {
+                    continue;
+                }
+                Version latest = MvccStore.latestCommitted(chain);
+                Version seen = MvccStore.visible(chain, this, startTs);
+                if (matches(scan.where(), latest) || matches(scan.where(), seen)) {
+                    throw new TransactionConflictException("Rows matching a WHERE clause of transaction " + id
+                            + " in '" + scan.table().name + "' were changed concurrently");
+                }
+            }
+        }
+    }
+
+    private boolean changedSinceStart(VersionChain chain) {
+        Version latest = MvccStore.latestCommitted(chain);
+        return latest != null && latest.txnId != id && latest.commitTs > startTs;
+    }
+
+    private static boolean matches(Predicate<Map<String, Object>> where, Version v) {
+        return v != null && v.row != null && where.test(v.row);
+    }
+
+    private Map<String, Map<String, Object>> scan(String tableName, Predicate<Map<String, Object>> where) {
+        checkActive();
+        Table table = store.table(tableName);
+        long readTs = readTs();
+        Map<String, Map<String, Object>> ret = new LinkedHashMap<>();
+        for (Map.Entry<String, VersionChain> e : table.rows.entrySet()) {
+            Version v = MvccStore.visible(e.getValue(), this, readTs);
+            if (v != null && v.row != null && where.test(v.row)) {
+                ret.put(e.getKey(), v.row);
+                recordRead(table, e.getKey(), v);
+            }
+        }
+        if (isolationLevel == IsolationLevel.SERIALIZABLE) {
+            scans.add(new ScanRef(table, where));
+        }
+        return ret;
+    }
+
+    private void recordRead(Table table, String key, Version v) {
+        if (history != null && v != null && v.row != null && v.txnId != id) {
+            history.read(id, table.name, key, v.txnId);
+        }
+    }
+
+    private void checkActive() {
+        if (!active) {
+            throw new IllegalStateException("Transaction " + id + " is no longer active");
+        }
+    }
+}
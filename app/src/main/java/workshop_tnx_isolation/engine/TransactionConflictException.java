@@ -0,0 +1,13 @@
+package workshop_tnx_isolation.engine;
+
+/**
+ * Thrown when the engine has to abort a transaction to keep its isolation guarantees.
+ * The transaction is already rolled back when this is thrown, the caller is free to retry it.
+ */
+public class TransactionConflictException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public TransactionConflictException(String message) {
+        super(message);
+    }
+}